@@ -58,11 +58,20 @@ public class Admin {
         break;
 
       case "dump":
+        // validate argument
+        if ((tokens.length == 3 || tokens.length == 4) && (Integer.parseInt(tokens[2]) >= 1024 && Integer.parseInt(tokens[2]) < 65535)) {
+          _adminFrontend.dump(tokens[1], Integer.parseInt(tokens[2]), (tokens.length == 4) ? tokens[3] : "");
+        } else {
+          System.err.printf(_error_fmt, "Wrong format: try 'dump [host] [port] (classId)'");
+        }
+        break;
+
+      case "snapshot":
         // validate argument
         if ((tokens.length == 3) && (Integer.parseInt(tokens[2]) >= 1024 && Integer.parseInt(tokens[2]) < 65535)) {
-          _adminFrontend.dump(tokens[1], Integer.parseInt(tokens[2]));
+          _adminFrontend.snapshot(tokens[1], Integer.parseInt(tokens[2]));
         } else {
-          System.err.printf(_error_fmt, "Wrong format: try 'dump [host] [port]'");
+          System.err.printf(_error_fmt, "Wrong format: try 'snapshot [host] [port]'");
         }
         break;
 
@@ -4,6 +4,7 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 
+import pt.ulisboa.tecnico.classes.NamingChannels;
 import pt.ulisboa.tecnico.classes.Stringify;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminServiceGrpc;
@@ -19,6 +20,7 @@ import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.GossipRequest;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.GossipResponse;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DumpRequest;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DumpResponse;
+import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.ServerStatus;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupRequest;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupResponse;
 import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc;
@@ -34,6 +36,9 @@ public class AdminFrontend {
     // error messages
     private final String SERVER_UNREACHABLE = "Unreachable server... Try again...";
 
+    // status messages
+    private final String CATCHING_UP = "Server is catching up with its peers...";
+
 
     // grpc
     private static ManagedChannel _nameServerChannel;
@@ -46,10 +51,7 @@ public class AdminFrontend {
      * Default Constructor
      */
     public AdminFrontend() {
-        String host = "localhost";
-        int port = 5000;
-
-        _nameServerChannel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        _nameServerChannel = NamingChannels.create(NamingChannels.ENDPOINTS);
         _nameServerStub = NamingServerServiceGrpc.newBlockingStub(_nameServerChannel);
     }
 
@@ -121,6 +123,9 @@ public class AdminFrontend {
 
         // Displaying to user according to response
         System.out.println(Stringify.format(response.getCode()));
+        if (response.getStatus() == ServerStatus.CATCHING_UP) {
+            System.out.println(CATCHING_UP);
+        }
     }
 
     /**
@@ -155,11 +160,12 @@ public class AdminFrontend {
      *
      * @param host
      * @param port
+     * @param classId
      */
-    public void dump(String host, Integer port) {
+    public void dump(String host, Integer port, String classId) {
         updateStub(host, port);
 
-        final DumpRequest request = DumpRequest.newBuilder().build();
+        final DumpRequest request = DumpRequest.newBuilder().setClassId(classId).build();
         final DumpResponse response;
 
         // Send request and catch exceptions
@@ -174,6 +180,38 @@ public class AdminFrontend {
         // Display to user according to response
         if (response.getCode() == ClassesDefinitions.ResponseCode.OK) {
             System.out.println(Stringify.format(response.getClassState()));
+            if (response.getStatus() == ServerStatus.CATCHING_UP) {
+                System.out.println(CATCHING_UP);
+            }
+        } else {
+            System.out.println(Stringify.format(response.getCode()));
+        }
+    }
+
+    /**
+     * Has a server write a snapshot of all its classes, through the dump service
+     *
+     * @param host
+     * @param port
+     */
+    public void snapshot(String host, Integer port) {
+        updateStub(host, port);
+
+        final DumpRequest request = DumpRequest.newBuilder().setSnapshot(true).build();
+        final DumpResponse response;
+
+        // Send request and catch exceptions
+        try {
+            response = _stub.dump(request);
+        } catch (StatusRuntimeException e) {
+            System.err.printf(_error_fmt, (e.getStatus().getDescription() != null)
+                    ? e.getStatus().getDescription() : SERVER_UNREACHABLE);
+            return;
+        }
+
+        // Display to user according to response
+        if (response.getCode() == ClassesDefinitions.ResponseCode.OK) {
+            System.out.printf("Snapshot written to %s%n", response.getSnapshotPath());
         } else {
             System.out.println(Stringify.format(response.getCode()));
         }
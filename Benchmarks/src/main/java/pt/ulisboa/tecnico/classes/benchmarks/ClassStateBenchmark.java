@@ -0,0 +1,60 @@
+package pt.ulisboa.tecnico.classes.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.classes.classserver.Class;
+import pt.ulisboa.tecnico.classes.classserver.VectorClock;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class.createClassState on a roster of a given size, both when the
+ * class changed since the last call (the state is rebuilt) and when
+ * it did not (the cached snapshot is returned)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassStateBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int roster;
+
+    private Class _class;
+
+    @Setup
+    public void setup() {
+        _class = new Class(new VectorClock("localhost", 8080));
+        _class.openEnrollments(roster);
+        for (int i = 0; i < roster; i++) {
+            _class.enroll(String.format("aluno%07d", i), "Student Name " + i);
+        }
+        _class.createClassState();
+    }
+
+    @Benchmark
+    public ClassState rebuilt() {
+        // Cheapest write, only changes the class version
+        _class.closeEnrollments();
+        return _class.createClassState();
+    }
+
+    @Benchmark
+    public ClassState cached() {
+        return _class.createClassState();
+    }
+}
@@ -0,0 +1,71 @@
+package pt.ulisboa.tecnico.classes.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.classes.classserver.Class;
+import pt.ulisboa.tecnico.classes.classserver.VectorClock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class.enroll and Class.cancelEnrollment on a roster of a given size.
+ * Every write changes the roster, so each iteration runs a fixed batch of
+ * writes on a freshly built class and the roster stays close to its size.
+ * The score is the time for the whole batch
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = ClassWriteBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = ClassWriteBenchmark.BATCH)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassWriteBenchmark {
+
+    public static final int BATCH = 10000;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int roster;
+
+    private Class _class;
+    private int _next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        _class = new Class(new VectorClock("localhost", 8080));
+        _class.openEnrollments(Integer.MAX_VALUE);
+
+        // Students the batch cancels come first, followed by the roster itself
+        for (int i = 0; i < BATCH + roster; i++) {
+            _class.enroll(id(i), "Student Name " + i);
+        }
+        _next = 0;
+    }
+
+    @Benchmark
+    public Class enroll() {
+        final int i = BATCH + roster + _next++;
+        _class.enroll(id(i), "Student Name " + i);
+        return _class;
+    }
+
+    @Benchmark
+    public Class cancelEnrollment() {
+        _class.cancelEnrollment(id(_next++));
+        return _class;
+    }
+
+    private static String id(int i) {
+        return String.format("aluno%07d", i);
+    }
+}
@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.classes.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.classes.classserver.Class;
+import pt.ulisboa.tecnico.classes.classserver.OperationLog;
+import pt.ulisboa.tecnico.classes.classserver.VectorClock;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many students enrolling on the same class at once.
+ * Compares the lock-free enrollment path against the previous one,
+ * where every enrollment ran its checks inside synchronized (class).
+ * Both log every enrollment they make in the class's operation log
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class EnrollContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class TurmaState {
+
+        // A small class fills up at once, so most requests are rejected (enrollment storm)
+        @Param({"1000", "1000000"})
+        public int capacity;
+
+        public Class turma;
+
+        private final AtomicInteger _threads = new AtomicInteger();
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            turma = new Class(new VectorClock("localhost", 8080));
+            turma.openEnrollments(capacity);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class StudentState {
+
+        private String _prefix;
+        private int _next;
+
+        @Setup(Level.Iteration)
+        public void setup(TurmaState state) {
+            _prefix = "aluno" + state._threads.incrementAndGet() + "-";
+            _next = 0;
+        }
+
+        public String nextId() {
+            return _prefix + _next++;
+        }
+    }
+
+    @Benchmark
+    public ResponseCode lockFree(TurmaState state, StudentState student) {
+        final Class turma = state.turma;
+        final String id = student.nextId();
+
+        // Logs the enrollment, incrementing the vector clock
+        return turma.tryEnroll(id, "Student Name");
+    }
+
+    @Benchmark
+    public ResponseCode synchronizedClass(TurmaState state, StudentState student) {
+        final Class turma = state.turma;
+        final String id = student.nextId();
+
+        synchronized (turma) {
+            if (!turma.getOpenEnrollments()) {
+                return ResponseCode.ENROLLMENTS_ALREADY_CLOSED;
+            } else if (turma.isEnrolled(id)) {
+                return ResponseCode.STUDENT_ALREADY_ENROLLED;
+            } else if (turma.isFull()) {
+                return ResponseCode.FULL_CLASS;
+            }
+            turma.enroll(id, "Student Name");
+            // Logged like tryEnroll does, incrementing the vector clock
+            turma.getOperationLog().record(OperationLog.enroll(id, "Student Name"));
+            return ResponseCode.OK;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package pt.ulisboa.tecnico.classes.benchmarks;
+
+import io.grpc.Drainable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.classes.classserver.Class;
+import pt.ulisboa.tecnico.classes.classserver.PreSerializedResponses;
+import pt.ulisboa.tecnico.classes.classserver.VectorClock;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassResponse;
+import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing a listClass response to the transport, for an unchanged class.
+ * The default path marshals the cached ClassState on every request, the
+ * pre-serialized path copies the bytes cached for the class version.
+ * Run with "-prof gc" to get the bytes allocated per operation
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListClassSerializationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int students;
+
+    private Class _class;
+
+    private final OutputStream _transport = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() {
+        _class = new Class(new VectorClock("localhost", 8080));
+        _class.openEnrollments(students);
+        for (int i = 0; i < students; i++) {
+            _class.enroll(String.format("aluno%04d", i), "Student Name " + i);
+        }
+
+        // Warm both caches for the current version
+        _class.createClassState();
+        _class.createListClassBytes();
+    }
+
+    @Benchmark
+    public int protobuf() throws IOException {
+        final ListClassResponse response = ListClassResponse.newBuilder()
+                .setCode(ResponseCode.OK).setClassState(_class.createClassState()).build();
+
+        return drain(StudentServiceGrpc.getListClassMethod().streamResponse(response));
+    }
+
+    @Benchmark
+    public int preSerialized() throws IOException {
+        return drain(PreSerializedResponses.MARSHALLER.stream(_class.createListClassBytes()));
+    }
+
+    private int drain(InputStream stream) throws IOException {
+        // gRPC drains the message into its own buffers when the stream allows it
+        if (stream instanceof Drainable) {
+            return ((Drainable) stream).drainTo(_transport);
+        }
+        return (int) stream.transferTo(_transport);
+    }
+}
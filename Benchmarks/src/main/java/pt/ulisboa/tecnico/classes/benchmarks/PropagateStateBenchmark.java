@@ -0,0 +1,134 @@
+package pt.ulisboa.tecnico.classes.benchmarks;
+
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import pt.ulisboa.tecnico.classes.classserver.BucketDigest;
+import pt.ulisboa.tecnico.classes.classserver.Class;
+import pt.ulisboa.tecnico.classes.classserver.ClassRegistry;
+import pt.ulisboa.tecnico.classes.classserver.ClassServer;
+import pt.ulisboa.tecnico.classes.classserver.ClassServerServiceImpl;
+import pt.ulisboa.tecnico.classes.classserver.VectorClock;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Clock;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateRequest;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClassServerServiceImpl.propagateState receiving a class of a given size
+ * from another server, either as its full state or as the operations that
+ * built it. Every request in a batch goes to a class the receiver does not
+ * have yet, so each one is merged in full. compareDigest instead sends the
+ * roster digest of a class the receiver already has the same roster of,
+ * computing the receiver's digest for the first time. The score is the time for the batch
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = PropagateStateBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = PropagateStateBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = "-DoperationLogSize=100000")
+@State(Scope.Benchmark)
+public class PropagateStateBenchmark {
+
+    public static final int BATCH = 100;
+
+    @Param({"10", "1000", "10000"})
+    public int students;
+
+    // One request per class of the batch
+    private final PropagateStateRequest[] _state = new PropagateStateRequest[BATCH];
+    private final PropagateStateRequest[] _operations = new PropagateStateRequest[BATCH];
+    private final PropagateStateRequest[] _digest = new PropagateStateRequest[BATCH];
+
+    private ClassState _classState;
+
+    private ClassServerServiceImpl _service;
+    private int _next;
+
+    private final StreamObserver<PropagateStateResponse> _observer = new StreamObserver<>() {
+        @Override
+        public void onNext(PropagateStateResponse response) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        ClassServer.activateServer();
+
+        // Class built on the sending server, logging every write
+        final Class sender = new Class(new VectorClock("localhost", 8081));
+        sender.open(students);
+        for (int i = 0; i < students; i++) {
+            sender.tryEnroll(String.format("aluno%05d", i), "Student Name " + i);
+        }
+
+        final VectorClock vectorClock = sender.getVectorClock();
+        final PropagateStateRequest request = PropagateStateRequest.newBuilder()
+                .setClock(Clock.newBuilder().setHost("localhost").setPort(8081).setValue(vectorClock.getClock(0)))
+                .setQualifier("S").setVector(vectorClock.toMessage()).build();
+
+        _classState = sender.createReplicaState();
+        final PropagateStateRequest state = request.toBuilder().setClassState(_classState).build();
+        final PropagateStateRequest operations = request.toBuilder()
+                .addAllOperations(sender.getOperationLog().since(new int[0])).build();
+        final PropagateStateRequest digest = request.toBuilder()
+                .setDigest(BucketDigest.toMessage(sender.createDigest(_classState))).build();
+        for (int i = 0; i < BATCH; i++) {
+            _state[i] = state.toBuilder().setClassId("class" + i).build();
+            _operations[i] = operations.toBuilder().setClassId("class" + i).build();
+            _digest[i] = digest.toBuilder().setClassId("class" + i).build();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setupReceiver(BenchmarkParams params) {
+        final ClassRegistry classes = new ClassRegistry("localhost", 8080);
+
+        // Same rosters as the sender, without its vector clock
+        if (params.getBenchmark().endsWith("compareDigest")) {
+            for (int i = 0; i < BATCH; i++) {
+                classes.getOrCreate("class" + i).merge(_classState);
+            }
+        }
+
+        _service = new ClassServerServiceImpl(classes, "P", 8080);
+        _next = 0;
+    }
+
+    @Benchmark
+    public void mergeState() {
+        _service.propagateState(_state[_next++], _observer);
+    }
+
+    @Benchmark
+    public void applyOperations() {
+        _service.propagateState(_operations[_next++], _observer);
+    }
+
+    @Benchmark
+    public void compareDigest() {
+        _service.propagateState(_digest[_next++], _observer);
+    }
+}
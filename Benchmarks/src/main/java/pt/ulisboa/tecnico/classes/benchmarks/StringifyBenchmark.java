@@ -0,0 +1,57 @@
+package pt.ulisboa.tecnico.classes.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.classes.Stringify;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stringify.format of a class state, as printed by the clients
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StringifyBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int students;
+
+    private ClassState _classState;
+
+    @Setup
+    public void setup() {
+        final ClassState.Builder classState = ClassState.newBuilder().setCapacity(students).setOpenEnrollments(true);
+        for (int i = 0; i < students; i++) {
+            final Student student = Student.newBuilder()
+                    .setStudentId(String.format("aluno%04d", i)).setStudentName("Student Name " + i).build();
+            // One in ten students cancelled their enrollment
+            if (i % 10 == 0) {
+                classState.addDiscarded(student);
+            } else {
+                classState.addEnrolled(student);
+            }
+        }
+        _classState = classState.build();
+    }
+
+    @Benchmark
+    public String format() {
+        return Stringify.format(_classState);
+    }
+}
@@ -0,0 +1,77 @@
+package pt.ulisboa.tecnico.classes.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.classes.classserver.VectorClock;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.ClockVector;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * VectorClock updates and the conversions done on every gossip message,
+ * for a given number of replicas
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VectorClockBenchmark {
+
+    @Param({"3", "16"})
+    public int replicas;
+
+    private VectorClock _vectorClock;
+    private ClockVector _incoming;
+    private int _value;
+
+    @Setup
+    public void setup() {
+        _vectorClock = new VectorClock("localhost", 8080);
+
+        final ClockVector.Builder incoming = ClockVector.newBuilder();
+        for (int i = 0; i < replicas; i++) {
+            final String replica = "localhost:" + (8080 + i);
+            _vectorClock.mergeClock(_vectorClock.getIndex().slot(replica), 1000);
+            incoming.addReplicas(replica).addValues(500);
+        }
+        _incoming = incoming.build();
+    }
+
+    @Benchmark
+    public int incrementClock() {
+        return _vectorClock.incrementClock();
+    }
+
+    @Benchmark
+    public VectorClock mergeClock() {
+        _vectorClock.mergeClock(replicas - 1, ++_value);
+        return _vectorClock;
+    }
+
+    @Benchmark
+    public boolean dominates() {
+        return _vectorClock.dominates(_incoming);
+    }
+
+    @Benchmark
+    public ClockVector toMessage() {
+        return _vectorClock.toMessage();
+    }
+
+    @Benchmark
+    public int[] fromMessage() {
+        return _vectorClock.fromMessage(_incoming);
+    }
+}
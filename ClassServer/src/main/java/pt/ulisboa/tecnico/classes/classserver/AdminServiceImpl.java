@@ -18,18 +18,21 @@ import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.GossipResponse
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DumpRequest;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DumpResponse;
 
+import java.io.IOException;
+
+import static io.grpc.Status.INTERNAL;
 
 public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
 
-    // Internal Class State
-    final private Class _class;
+    // Internal Class States
+    final private ClassRegistry _classes;
 
     /**
      * Constructor
-     * @param _class
+     * @param classes
      */
-    public AdminServiceImpl(Class _class) {
-        this._class = _class;
+    public AdminServiceImpl(ClassRegistry classes) {
+        this._classes = classes;
     }
 
     @Override
@@ -40,7 +43,8 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
         ClassServer.activateServer();
 
         // Build and send response
-        responseObserver.onNext(ActivateResponse.newBuilder().setCode(ResponseCode.OK).build());
+        responseObserver.onNext(ActivateResponse.newBuilder().setCode(ResponseCode.OK)
+                .setStatus(ClassServer.getStatus()).build());
         responseObserver.onCompleted();
 
     }
@@ -63,11 +67,22 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
         ClassServer.debug("ADMIN: Dump Request");
 
         // Get class state and build response
-        DumpResponse response = DumpResponse.newBuilder().setCode(ResponseCode.OK)
-                .setClassState(_class.createClassState()).build();
+        DumpResponse.Builder response = DumpResponse.newBuilder().setCode(ResponseCode.OK)
+                .setClassState(_classes.get(request.getClassId()).createClassState())
+                .setStatus(ClassServer.getStatus());
+
+        if (request.getSnapshot()) {
+            try {
+                response.setSnapshotPath(ClassServer.writeSnapshot().toString());
+            } catch (IOException e) {
+                responseObserver.onError(INTERNAL.withDescription("Could not write snapshot").asRuntimeException());
+                ClassServer.debug("ADMIN: Last Dump Request failed, could not write snapshot: " + e.getMessage());
+                return;
+            }
+        }
 
         // Send response
-        responseObserver.onNext(response);
+        responseObserver.onNext(response.build());
         responseObserver.onCompleted();
 
     }
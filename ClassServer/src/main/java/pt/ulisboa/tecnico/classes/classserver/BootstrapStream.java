@@ -0,0 +1,122 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.BootstrapChunk;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.ClockVector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the state of every hosted class to a joining server, in chunks of
+ * at most CHUNK_SIZE students. Chunks are only built while the stream is
+ * ready, so a slow receiver does not make the whole state pile up in memory
+ */
+public class BootstrapStream implements Runnable {
+
+    // Students per chunk
+    private static final int CHUNK_SIZE = Integer.getInteger("bootstrapChunkSize", 1000);
+
+    private final ServerCallStreamObserver<BootstrapChunk> _observer;
+    private final Iterator<Map.Entry<String, Class>> _classes;
+    private final String _qualifier;
+
+    // Joining server, acknowledged as having the state sent to it
+    private final String _peer;
+
+    // Class being sent, and how much of its roster was sent already
+    private String _classId;
+    private Class _class;
+    private ClockVector _vector;
+    private ClassState _state;
+    private int _enrolled;
+    private int _discarded;
+
+    private int _chunks = 0;
+    private boolean _done = false;
+
+    public BootstrapStream(ServerCallStreamObserver<BootstrapChunk> observer, ClassRegistry classes,
+                           String qualifier, String peer) {
+        this._observer = observer;
+        this._classes = new ArrayList<>(classes.getClasses().entrySet()).iterator();
+        this._qualifier = qualifier;
+        this._peer = peer;
+    }
+
+    /**
+     * Sends chunks until the stream is no longer ready or every class was sent.
+     * Called by gRPC every time the stream becomes ready
+     */
+    @Override
+    public void run() {
+        while (!_done && _observer.isReady() && !_observer.isCancelled()) {
+            if (_state == null && !next()) {
+                _done = true;
+                _observer.onCompleted();
+                ClassServer.debug(String.format("SERVER: Bootstrap of %s done, %d chunks sent", _peer, _chunks));
+                return;
+            }
+            _observer.onNext(chunk());
+            _chunks++;
+        }
+    }
+
+    /**
+     * Moves to the next class
+     *
+     * @return false if there are no more classes
+     */
+    private boolean next() {
+        if (!_classes.hasNext()) {
+            return false;
+        }
+        final Map.Entry<String, Class> entry = _classes.next();
+        _classId = entry.getKey();
+        _class = entry.getValue();
+
+        // Taken before the state, so it never claims writes the state does not have
+        _vector = _class.getVectorClock().toMessage();
+        _state = _class.createReplicaState();
+        _enrolled = 0;
+        _discarded = 0;
+        return true;
+    }
+
+    private BootstrapChunk chunk() {
+        final BootstrapChunk.Builder chunk = BootstrapChunk.newBuilder().setClassId(_classId);
+        final ClassState.Builder part = ClassState.newBuilder();
+        if (_enrolled == 0 && _discarded == 0) {
+            chunk.setVector(_vector).setQualifier(_qualifier);
+            part.setCapacity(_state.getCapacity()).setOpenEnrollments(_state.getOpenEnrollments())
+                    .setEnrollmentsTimestamp(_state.getEnrollmentsTimestamp());
+        }
+
+        final List<Student> enrolled = _state.getEnrolledList();
+        final List<Student> discarded = _state.getDiscardedList();
+
+        int room = CHUNK_SIZE;
+        final int enrolledEnd = Math.min(enrolled.size(), _enrolled + room);
+        part.addAllEnrolled(enrolled.subList(_enrolled, enrolledEnd));
+        room -= enrolledEnd - _enrolled;
+        _enrolled = enrolledEnd;
+
+        final int discardedEnd = Math.min(discarded.size(), _discarded + room);
+        part.addAllDiscarded(discarded.subList(_discarded, discardedEnd));
+        _discarded = discardedEnd;
+
+        chunk.setState(part);
+
+        if (_enrolled == enrolled.size() && _discarded == discarded.size()) {
+            chunk.setLast(true);
+
+            // The next gossip rounds only send the writes that come after this state
+            _class.getOperationLog().acknowledge(_peer, _vector);
+            _state = null;
+        }
+        return chunk.build();
+    }
+}
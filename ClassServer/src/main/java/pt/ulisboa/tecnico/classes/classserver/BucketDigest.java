@@ -0,0 +1,134 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.RosterDigest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Digest of a roster, to find which parts of it two servers disagree on
+ * without sending it. Students are split in buckets by id, and each bucket
+ * hashes to the sum of the hashes of its students, so the order students
+ * were added in does not matter
+ */
+public class BucketDigest {
+
+    // Buckets of student ids, the last bucket of a digest holds the capacity and open enrollments.
+    // Timestamps are hashed too, so replicas that agree on a student but not on its last write differ
+    public static final int BUCKETS = 256;
+
+    private static final long ENROLLED = 0x9e3779b97f4a7c15L;
+    private static final long DISCARDED = 0xc2b2ae3d27d4eb4fL;
+
+    /**
+     * Computes the digest of a class state
+     *
+     * @param classState
+     * @return the hash of every bucket
+     */
+    public static long[] compute(ClassState classState) {
+        final long[] buckets = new long[BUCKETS + 1];
+        for (Student student : classState.getEnrolledList()) {
+            add(buckets, student, ENROLLED);
+        }
+        for (Student student : classState.getDiscardedList()) {
+            add(buckets, student, DISCARDED);
+        }
+        buckets[BUCKETS] = mix(mix(classState.getCapacity() * 2L + (classState.getOpenEnrollments() ? 1 : 0))
+                ^ classState.getEnrollmentsTimestamp());
+        return buckets;
+    }
+
+    /**
+     * Gets the buckets in which two digests differ
+     *
+     * @param buckets
+     * @param digest
+     * @return
+     */
+    public static List<Integer> differing(long[] buckets, RosterDigest digest) {
+        final List<Integer> differing = new ArrayList<>();
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            if (digest.getBucketsCount() != buckets.length || digest.getBuckets(bucket) != buckets[bucket]) {
+                differing.add(bucket);
+            }
+        }
+        return differing;
+    }
+
+    /**
+     * Gets the part of a class state in the given buckets. The capacity
+     * and open enrollments, with their timestamp, are always kept
+     *
+     * @param classState
+     * @param buckets
+     * @return
+     */
+    public static ClassState filter(ClassState classState, Collection<Integer> buckets) {
+        final Set<Integer> kept = new HashSet<>(buckets);
+        final ClassState.Builder filtered = ClassState.newBuilder()
+                .setCapacity(classState.getCapacity()).setOpenEnrollments(classState.getOpenEnrollments())
+                .setEnrollmentsTimestamp(classState.getEnrollmentsTimestamp());
+        for (Student student : classState.getEnrolledList()) {
+            if (kept.contains(bucket(student.getStudentId()))) {
+                filtered.addEnrolled(student);
+            }
+        }
+        for (Student student : classState.getDiscardedList()) {
+            if (kept.contains(bucket(student.getStudentId()))) {
+                filtered.addDiscarded(student);
+            }
+        }
+        return filtered.build();
+    }
+
+    public static RosterDigest toMessage(long[] buckets) {
+        final RosterDigest.Builder digest = RosterDigest.newBuilder();
+        for (long bucket : buckets) {
+            digest.addBuckets(bucket);
+        }
+        return digest.build();
+    }
+
+    private static void add(long[] buckets, Student student, long list) {
+        final long id = hash(student.getStudentId());
+        buckets[bucket(id)] += mix(id ^ Long.rotateLeft(hash(student.getStudentName()), 31) ^ list
+                ^ Long.rotateLeft(mix(student.getTimestamp()), 17));
+    }
+
+    private static int bucket(String studentId) {
+        return bucket(hash(studentId));
+    }
+
+    private static int bucket(long id) {
+        return (int) Long.remainderUnsigned(id, BUCKETS);
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters of a string, then mixed
+     */
+    private static long hash(String string) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, so every input bit affects every output bit
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -1,80 +1,241 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Operation;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateRequest;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A class replicated as a conflict-free data type. Every write on a student
+ * and every opening or closing is timestamped with a Lamport clock, and the
+ * latest write wins, so replicas that saw the same writes hold the same
+ * class whatever order they saw them in
+ */
 public class Class {
 
-    private int _capacity;
-    private boolean _openEnrollments;
-    private ConcurrentHashMap<String, String> _enrolled = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, String> _discarded = new ConcurrentHashMap<>();
+    private volatile Enrollments _enrollments = new Enrollments(0, false, 0);
+    private volatile Roster _roster = new Roster();
 
-    public Class() {
+    // Encoded replica state from a memory-mapped snapshot, decoded into
+    // the roster the first time the roster is needed
+    private volatile ByteBuffer _stored;
+
+    // Each class keeps its own vector clock, so replicas track its updates independently
+    private final VectorClock _vectorClock;
+
+    // Writes applied to the class, gossiped to the other servers
+    private final OperationLog _log;
+
+    // Timestamps the writes on the class
+    private final LamportClock _clock;
+
+    // Last time the class was found to have every write of each peer, in milliseconds
+    private final Map<String, Long> _mergedAt = new ConcurrentHashMap<>();
+
+    // Bumped after every mutation, invalidating the cached snapshot
+    private final AtomicLong _version = new AtomicLong();
+    private volatile Snapshot _snapshot;
+
+    /**
+     * Capacity, which only grows, and open enrollments, set by the
+     * latest opening or closing. Replaced as a whole on every change
+     */
+    private static class Enrollments {
+        private final int _capacity;
+        private final boolean _open;
+        private final long _timestamp;
+
+        private Enrollments(int capacity, boolean open, long timestamp) {
+            this._capacity = capacity;
+            this._open = open;
+            this._timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Last write on a student: enrolled or discarded, with its timestamp
+     */
+    private static class Entry {
+        private final String _name;
+        private final boolean _enrolled;
+        private final long _timestamp;
+
+        private Entry(String name, boolean enrolled, long timestamp) {
+            this._name = name;
+            this._enrolled = enrolled;
+            this._timestamp = timestamp;
+        }
 
+        /**
+         * Returns true if this write wins over the given one: the latest write
+         * wins, a cancellation wins a tie with an enrollment, and the name breaks
+         * any other tie, so every replica picks the same write
+         */
+        private boolean wins(Entry other) {
+            if (other == null) {
+                return true;
+            } else if (_timestamp != other._timestamp) {
+                return _timestamp > other._timestamp;
+            } else if (_enrolled != other._enrolled) {
+                return !_enrolled;
+            }
+            return _name.compareTo(other._name) > 0;
+        }
+
+        private int seats() {
+            return _enrolled ? 1 : 0;
+        }
     }
 
-    public Class(ClassState classState) {
-        setFromClassState(classState.getCapacity(), classState.getOpenEnrollments(),
-                classState.getEnrolledList(), classState.getDiscardedList());
+    /**
+     * Last write on every student plus the number of enrolled students
+     */
+    private static class Roster {
+        private final ConcurrentHashMap<String, Entry> _students = new ConcurrentHashMap<>();
+        private final AtomicInteger _seats = new AtomicInteger();
     }
 
     /**
-     * Gets class's capacity
+     * Immutable class states built for a given version of the class. The client
+     * view and the replica state, which also has the timestamps, are built on first use
+     */
+    private static class Snapshot {
+        private final long _version;
+        private final Class _class;
+
+        // Encoded replica state from a memory-mapped snapshot. Only set while the roster is not decoded
+        private final ByteBuffer _stored;
+
+        private volatile ClassState _state;
+        private volatile ClassState _replica;
+
+        // Encoded listClass response, only built when the wire cache is used
+        private volatile byte[] _bytes;
+
+        // Digest of the replica state, only built when the state is gossiped in full
+        private volatile long[] _digest;
+
+        private Snapshot(long version, Class turma, ByteBuffer stored) {
+            this._version = version;
+            this._class = turma;
+            this._stored = stored;
+        }
+
+        private ClassState state() {
+            ClassState state = _state;
+            if (state == null) {
+                state = (_stored != null) ? withoutTimestamps(replica()) : _class.buildClassState(false);
+                _state = state;
+            }
+            return state;
+        }
+
+        private ClassState replica() {
+            ClassState replica = _replica;
+            if (replica == null) {
+                replica = (_stored != null) ? parse(_stored) : _class.buildClassState(true);
+                _replica = replica;
+            }
+            return replica;
+        }
+    }
+
+    public Class() {
+        this._vectorClock = null;
+        this._log = null;
+        this._clock = new LamportClock("", 0);
+    }
+
+    public Class(VectorClock vectorClock) {
+        this._vectorClock = vectorClock;
+        this._log = new OperationLog(vectorClock);
+        this._clock = new LamportClock(vectorClock.getHost(), vectorClock.getPort());
+    }
+
+    /**
+     * Gets class's vector clock
      *
      * @return
      */
-    public int getCapacity() {
-        return this._capacity;
+    public VectorClock getVectorClock() {
+        return this._vectorClock;
     }
 
     /**
-     * Sets the capacity for the class
-     * @param capacity
+     * Gets class's operation log
+     *
+     * @return
      */
-    public void setCapacity(int capacity) {
-        _capacity = Math.max(capacity, _capacity);
+    public OperationLog getOperationLog() {
+        return this._log;
     }
 
     /**
-     * Gets class's size
+     * Gets class's version, which changes every time the class is modified
      *
      * @return
      */
-    public int getClassSize() {
-        return _enrolled.size();
+    public long getVersion() {
+        return _version.get();
     }
 
     /**
-     * Returns true if enrollments are open
+     * Records that the class has every write a peer has, as of now
+     *
+     * @param peer address of the peer
+     */
+    public void markMerged(String peer) {
+        _mergedAt.put(peer, System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the last time the class was found to have every write of a peer
+     *
+     * @param peer address of the peer
+     * @return in milliseconds, 0 if never
+     */
+    public long getMergedAt(String peer) {
+        return _mergedAt.getOrDefault(peer, 0L);
+    }
+
+    /**
+     * Gets class's capacity
      *
      * @return
      */
-    public boolean getOpenEnrollments() {
-        return this._openEnrollments;
+    public int getCapacity() {
+        return _enrollments._capacity;
     }
 
     /**
-     * Gets enrolled students
+     * Gets class's size
      *
      * @return
      */
-    public ConcurrentHashMap<String, String> getEnrolled() {
-        return _enrolled;
+    public int getClassSize() {
+        return roster()._seats.get();
     }
 
     /**
-     * Gets discarded students
+     * Returns true if enrollments are open
      *
      * @return
      */
-    public ConcurrentHashMap<String, String> getDiscarded() {
-        return _discarded;
+    public boolean getOpenEnrollments() {
+        return _enrollments._open;
     }
 
     /**
@@ -83,7 +244,8 @@ public class Class {
      * @return
      */
     public boolean isDiscarded(String studentId) {
-        return _discarded.containsKey(studentId);
+        final Entry entry = roster()._students.get(studentId);
+        return entry != null && !entry._enrolled;
     }
 
     /**
@@ -92,7 +254,7 @@ public class Class {
      * @return
      */
     public boolean isFull() {
-        return (getClassSize() == this._capacity);
+        return (roster()._seats.get() >= getCapacity());
     }
 
     /**
@@ -103,7 +265,8 @@ public class Class {
      * @return
      */
     public boolean isEnrolled(String id) {
-        return _enrolled.containsKey(id);
+        final Entry entry = roster()._students.get(id);
+        return entry != null && entry._enrolled;
     }
 
     /**
@@ -113,15 +276,14 @@ public class Class {
      * @param capacity
      */
     public void openEnrollments(int capacity) {
-        this._capacity = Math.max(_capacity, capacity);
-        this._openEnrollments = true;
+        setEnrollments(true, capacity, tick());
     }
 
     /**
      * Closes class's enrollments
      */
     public void closeEnrollments() {
-        this._openEnrollments = false;
+        setEnrollments(false, 0, tick());
     }
 
     /**
@@ -130,87 +292,505 @@ public class Class {
      * @param id
      */
     public void cancelEnrollment(String id) {
-        String nome = _enrolled.get(id);
-        if (nome != null) {
-            _enrolled.remove(id);
-            _discarded.put(id, nome);
+        cancel(id, false);
+    }
+
+    /**
+     * Opens the class's enrollments on behalf of a client, logging the write.
+     * Callers hold the class lock
+     *
+     * @param capacity
+     */
+    public void open(int capacity) {
+        final long timestamp = tick();
+        setEnrollments(true, capacity, timestamp);
+        record(OperationLog.open(capacity).setTimestamp(timestamp));
+    }
+
+    /**
+     * Closes the class's enrollments on behalf of a client, logging the write.
+     * Callers hold the class lock
+     */
+    public void close() {
+        final long timestamp = tick();
+        setEnrollments(false, 0, timestamp);
+        record(OperationLog.close().setTimestamp(timestamp));
+    }
+
+    /**
+     * Cancels a student's enrollment on behalf of a client, logging the write
+     *
+     * @param id
+     * @return false if the student was not enrolled
+     */
+    public boolean cancel(String id) {
+        return cancel(id, true);
+    }
+
+    private boolean cancel(String id, boolean log) {
+        final Roster roster = roster();
+        final Entry[] cancelled = new Entry[1];
+        roster._students.computeIfPresent(id, (key, current) -> {
+            if (!current._enrolled) {
+                return current;
+            }
+            // Every timestamp of the class was observed, current's included
+            cancelled[0] = new Entry(current._name, false, _clock.tick());
+            roster._seats.decrementAndGet();
+            return cancelled[0];
+        });
+
+        if (cancelled[0] == null) {
+            return false;
+        }
+        _version.incrementAndGet();
+        if (log) {
+            record(OperationLog.cancel(id, cancelled[0]._name).setTimestamp(cancelled[0]._timestamp));
         }
+        return true;
+    }
+
+    /**
+     * Applies a write received from another server and keeps it in the
+     * log so it can be relayed. Enrollments are merged even if the class
+     * is full here, see enforceCapacity. Callers hold the class lock
+     *
+     * @param slot of the server that issued the write
+     * @param operation
+     */
+    public void apply(int slot, Operation operation) {
+        merge(operation);
+        _log.append(slot, operation);
     }
 
     /**
-     * Enrolls a particular student on the class
+     * Applies a write read back from the write-ahead log. Writes already in a
+     * restored snapshot may be replayed, which merging makes harmless, and the
+     * log only keeps the ones the snapshot does not cover. Concurrent writes may
+     * have been journaled out of clock order, so a write below the clock is
+     * still logged. Callers hold the class lock
+     *
+     * @param operation
+     */
+    public void replay(Operation operation) {
+        merge(operation);
+
+        final int slot = _vectorClock.getIndex().slot(VectorClock.server(operation.getClock()));
+        _log.append(slot, operation);
+        _vectorClock.mergeClock(slot, operation.getClock().getValue());
+    }
+
+    private void merge(Operation operation) {
+        final long timestamp = operation.getTimestamp();
+        final Student student = operation.getStudent();
+        switch (operation.getType()) {
+            case ENROLL -> merge(roster(), student.getStudentId(), new Entry(student.getStudentName(), true, timestamp));
+            case CANCEL -> merge(roster(), student.getStudentId(), new Entry(student.getStudentName(), false, timestamp));
+            case OPEN -> setEnrollments(true, operation.getCapacity(), timestamp);
+            case CLOSE -> setEnrollments(false, 0, timestamp);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Merges the state of this class on another server. Students are merged
+     * one at a time, without the class lock, so writes on the class go on meanwhile
+     *
+     * @param classState replica state, with timestamps
+     */
+    public void merge(ClassState classState) {
+        setEnrollments(classState.getOpenEnrollments(), classState.getCapacity(),
+                classState.getEnrollmentsTimestamp());
+
+        final Roster roster = roster();
+        for (Student student : classState.getEnrolledList()) {
+            merge(roster, student.getStudentId(), new Entry(student.getStudentName(), true, student.getTimestamp()));
+        }
+        for (Student student : classState.getDiscardedList()) {
+            merge(roster, student.getStudentId(), new Entry(student.getStudentName(), false, student.getTimestamp()));
+        }
+    }
+
+    /**
+     * Keeps the class within its capacity after merging writes from other servers,
+     * which may have enrolled more students than fit between them. The latest
+     * enrollments are cancelled, with their own timestamps, so every server that
+     * overflows cancels the same ones; the cancellations are logged for the rest.
+     * Callers hold the class lock
+     */
+    public void enforceCapacity() {
+        final Roster roster = roster();
+        final int excess = roster._seats.get() - getCapacity();
+        if (excess <= 0) {
+            return;
+        }
+
+        final List<Map.Entry<String, Entry>> enrolled = new ArrayList<>();
+        for (Map.Entry<String, Entry> student : roster._students.entrySet()) {
+            if (student.getValue()._enrolled) {
+                enrolled.add(student);
+            }
+        }
+        enrolled.sort(Comparator.comparingLong((Map.Entry<String, Entry> student) -> student.getValue()._timestamp)
+                .thenComparing(Map.Entry::getKey).reversed());
+
+        int cancelled = 0;
+        for (int i = 0; i < enrolled.size() && cancelled < excess; i++) {
+            final String id = enrolled.get(i).getKey();
+            final Entry entry = enrolled.get(i).getValue();
+            if (merge(roster, id, new Entry(entry._name, false, entry._timestamp))) {
+                record(OperationLog.cancel(id, entry._name).setTimestamp(entry._timestamp));
+                cancelled++;
+            }
+        }
+        ClassServer.debug(String.format("SERVER: Cancelled %d enrollments over the capacity of %d",
+                cancelled, getCapacity()));
+    }
+
+    /**
+     * Logs a local write once it was applied, outside the lock that applied it, so
+     * concurrent writes may be logged in another order than they were applied in.
+     * Each one carries the timestamp it was applied with, and merging keeps the
+     * latest write on every student whatever order writes arrive in
+     *
+     * @param operation
+     */
+    private void record(Operation.Builder operation) {
+        if (_log != null) {
+            _log.record(operation);
+        }
+    }
+
+    /**
+     * Gets the timestamp for a new local write. A stored roster is decoded
+     * first, so the clock is past every timestamp in it
+     *
+     * @return
+     */
+    private long tick() {
+        roster();
+        return _clock.tick();
+    }
+
+    /**
+     * Merges a write on a student into the roster
+     *
+     * @return true if the write won over the student's last write
+     */
+    private boolean merge(Roster roster, String id, Entry entry) {
+        _clock.observe(entry._timestamp);
+
+        final boolean[] won = new boolean[1];
+        roster._students.compute(id, (key, current) -> {
+            if (!entry.wins(current)) {
+                return current;
+            }
+            won[0] = true;
+            roster._seats.addAndGet(entry.seats() - ((current != null) ? current.seats() : 0));
+            return entry;
+        });
+
+        if (won[0]) {
+            _version.incrementAndGet();
+        }
+        return won[0];
+    }
+
+    /**
+     * Merges an opening or closing and a capacity into the enrollments
+     */
+    private synchronized void setEnrollments(boolean open, int capacity, long timestamp) {
+        // A stored roster holds the timestamp of the last opening or closing
+        roster();
+        _clock.observe(timestamp);
+
+        final Enrollments current = _enrollments;
+        final boolean later = timestamp > current._timestamp
+                || (timestamp == current._timestamp && current._open && !open);
+        if (!later && capacity <= current._capacity) {
+            return;
+        }
+
+        _enrollments = new Enrollments(Math.max(current._capacity, capacity),
+                later ? open : current._open, later ? timestamp : current._timestamp);
+        _version.incrementAndGet();
+    }
+
+    /**
+     * Enrolls a particular student on the class,
+     * regardless of its capacity
      *
      * @param id
      * @param nome
      */
     public void enroll(String id, String nome) {
-        _discarded.remove(id);
-        _enrolled.put(id, nome);
+        merge(roster(), id, new Entry(nome, true, tick()));
+    }
+
+    /**
+     * Enrolls a particular student on the class if enrollments are open,
+     * the student is not enrolled yet and there is a free seat.
+     * Does not need the class lock: a seat is reserved with a CAS on the
+     * seat counter before the student is added, so capacity is never exceeded
+     *
+     * @param id
+     * @param nome
+     * @return
+     */
+    public ResponseCode tryEnroll(String id, String nome) {
+        final Roster roster = roster();
+        if (!getOpenEnrollments()) {
+            return ResponseCode.ENROLLMENTS_ALREADY_CLOSED;
+        } else if (isEnrolled(id)) {
+            return ResponseCode.STUDENT_ALREADY_ENROLLED;
+        }
+
+        // Reserve a seat
+        int seats;
+        do {
+            seats = roster._seats.get();
+            if (seats >= getCapacity()) {
+                return ResponseCode.FULL_CLASS;
+            }
+        } while (!roster._seats.compareAndSet(seats, seats + 1));
+
+        final Entry[] enrolled = new Entry[1];
+        roster._students.compute(id, (key, current) -> {
+            if (current != null && current._enrolled) {
+                return current;
+            }
+            // Every timestamp of the class was observed, current's included
+            enrolled[0] = new Entry(nome, true, _clock.tick());
+            return enrolled[0];
+        });
+
+        // Another request enrolled the same student meanwhile, give the seat back
+        if (enrolled[0] == null) {
+            roster._seats.decrementAndGet();
+            return ResponseCode.STUDENT_ALREADY_ENROLLED;
+        }
+
+        _version.incrementAndGet();
+        record(OperationLog.enroll(id, nome).setTimestamp(enrolled[0]._timestamp));
+        return ResponseCode.OK;
+    }
+
+    /**
+     * Gets a ClassState object for the current class state.
+     * The state is rebuilt only if the class changed since the last call,
+     * otherwise the cached immutable snapshot is returned without locking
+     *
+     * @return
+     */
+    public ClassState createClassState() {
+        return snapshot().state();
+    }
+
+    /**
+     * Gets the state of the class as sent to other servers, with the
+     * timestamps of every write. Cached like createClassState
+     *
+     * @return
+     */
+    public ClassState createReplicaState() {
+        return snapshot().replica();
+    }
+
+    /**
+     * Gets the digest of a replica state built by this class. The digest of
+     * the current state is cached until the class changes
+     *
+     * @param classState
+     * @return the hash of every bucket
+     */
+    public long[] createDigest(ClassState classState) {
+        final Snapshot snapshot = _snapshot;
+        if (snapshot == null || snapshot._replica != classState) {
+            return BucketDigest.compute(classState);
+        }
+
+        long[] digest = snapshot._digest;
+        if (digest == null) {
+            digest = BucketDigest.compute(classState);
+            snapshot._digest = digest;
+        }
+        return digest;
+    }
+
+    /**
+     * Builds a propagate state request with the writes not covered by the given
+     * vector clock, or with the whole state if some of them are no longer in the log.
+     * The vector is taken before the state, so it never claims writes the
+     * state does not have, and after the operations, so it covers all of them
+     *
+     * @param known indexed by slot
+     * @return
+     */
+    public PropagateStateRequest.Builder createPropagateStateRequest(int[] known) {
+        final PropagateStateRequest.Builder request = PropagateStateRequest.newBuilder();
+        final List<Operation> operations = _log.since(known);
+        if (operations == null) {
+            request.setVector(_vectorClock.toMessage());
+            request.setClassState(createReplicaState());
+        } else {
+            request.addAllOperations(operations);
+            request.setVector(_vectorClock.toMessage());
+        }
+        return request;
+    }
+
+    /**
+     * Gets the encoded bytes of a successful listClass response for the current class state.
+     * Student and professor ListClassResponse messages share the same layout
+     * (code = 1, classState = 2), so the same bytes answer both services
+     *
+     * @return
+     */
+    public byte[] createListClassBytes() {
+        final Snapshot snapshot = snapshot();
+        byte[] bytes = snapshot._bytes;
+        if (bytes == null) {
+            bytes = encode(snapshot.state());
+            snapshot._bytes = bytes;
+        }
+        return bytes;
     }
 
-    public String getName(String id) {
-        return _enrolled.get(id);
+    private static byte[] encode(ClassState classState) {
+        // ResponseCode.OK is the default value and is not written
+        final byte[] bytes = new byte[CodedOutputStream.computeMessageSize(2, classState)];
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        try {
+            output.writeMessage(2, classState);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode class state", e);
+        }
+        return bytes;
     }
 
     /**
-     * Creates a ClassState object for the current class state
+     * Gets the snapshot for the current version of the class, creating it if needed
      *
      * @return
      */
-    public synchronized ClassState createClassState() {
-        // Create a classState to send to the client
-        final List<Student> EnrolledList = new ArrayList<>();
-        final List<Student> DiscardedList = new ArrayList<>();
+    private Snapshot snapshot() {
+        final long version = _version.get();
+        final Snapshot snapshot = _snapshot;
+        if (snapshot != null && snapshot._version == version) {
+            return snapshot;
+        }
 
-        // Set parameters for classState
-        int capacity = getCapacity();
-        boolean openEnrollments = getOpenEnrollments();
+        // Mutations before the states are built leave the version ahead of the snapshot, forcing a rebuild
+        final Snapshot created = new Snapshot(version, this, _stored);
+        _snapshot = created;
+        return created;
+    }
 
-        // Add the list of enrolled students
-        for (ConcurrentHashMap.Entry<String, String> entry : getEnrolled().entrySet()) {
-            final String id = entry.getKey();
-            final String name = entry.getValue();
-            final Student student = Student.newBuilder().setStudentId(id).setStudentName(name).build();
-            EnrolledList.add(student);
+    /**
+     * Builds a ClassState object from the current class state
+     *
+     * @param timestamps whether to include the timestamps, only sent to other servers
+     * @return
+     */
+    private ClassState buildClassState(boolean timestamps) {
+        final Enrollments enrollments = _enrollments;
+        final ClassState.Builder classState = ClassState.newBuilder()
+                .setCapacity(enrollments._capacity)
+                .setOpenEnrollments(enrollments._open);
+        if (timestamps) {
+            classState.setEnrollmentsTimestamp(enrollments._timestamp);
         }
 
-        // Add the list of discarded students
-        for (ConcurrentHashMap.Entry<String, String> entry : getDiscarded().entrySet()) {
-            final String id = entry.getKey();
-            final String name = entry.getValue();
-            final Student student = Student.newBuilder().setStudentId(id).setStudentName(name).build();
-            DiscardedList.add(student);
+        for (Map.Entry<String, Entry> student : roster()._students.entrySet()) {
+            final Entry entry = student.getValue();
+            final Student.Builder builder = Student.newBuilder()
+                    .setStudentId(student.getKey()).setStudentName(entry._name);
+            if (timestamps) {
+                builder.setTimestamp(entry._timestamp);
+            }
+            if (entry._enrolled) {
+                classState.addEnrolled(builder);
+            } else {
+                classState.addDiscarded(builder);
+            }
         }
+        return classState.build();
+    }
 
-        // Build class state with enrolled and discarded students, capacity and
-        // openEnrollments info
-        return ClassState.newBuilder()
-                .addAllEnrolled(EnrolledList)
-                .addAllDiscarded(DiscardedList)
-                .setCapacity(capacity)
-                .setOpenEnrollments(openEnrollments)
-                .build();
+    private static ClassState withoutTimestamps(ClassState classState) {
+        final ClassState.Builder stripped = ClassState.newBuilder()
+                .setCapacity(classState.getCapacity())
+                .setOpenEnrollments(classState.getOpenEnrollments());
+        for (Student student : classState.getEnrolledList()) {
+            stripped.addEnrolled(student.toBuilder().clearTimestamp());
+        }
+        for (Student student : classState.getDiscardedList()) {
+            stripped.addDiscarded(student.toBuilder().clearTimestamp());
+        }
+        return stripped.build();
     }
 
-    public synchronized void setFromClassState(Integer capacity, boolean _openEnrollments, List<Student> enrolled, List<Student> discarded) {
-        this._capacity = capacity;
-        this._openEnrollments = _openEnrollments;
-        this._enrolled = new ConcurrentHashMap<>();
-        this._discarded = new ConcurrentHashMap<>();
+    /**
+     * Sets the class from the replica state stored in a memory-mapped snapshot.
+     * The roster is only decoded when first written to, and reads before
+     * that parse the stored state, without building the roster
+     *
+     * @param capacity
+     * @param openEnrollments
+     * @param state encoded ClassState
+     */
+    public synchronized void setFromStored(int capacity, boolean openEnrollments, ByteBuffer state) {
+        // Set first, so concurrent readers wait for the roster to be decoded
+        this._stored = state;
+        this._enrollments = new Enrollments(capacity, openEnrollments, 0);
+        this._roster = new Roster();
+        _version.incrementAndGet();
+    }
 
-        for (Student student : enrolled) {
-            enroll(student.getStudentId(), student.getStudentName());
+    /**
+     * Gets the roster, decoding the stored state first if there is one
+     *
+     * @return
+     */
+    private Roster roster() {
+        return (_stored == null) ? _roster : decode();
+    }
+
+    private synchronized Roster decode() {
+        final ByteBuffer stored = _stored;
+        if (stored == null) {
+            return _roster;
         }
 
-        for (Student student : discarded) {
-            cancelEnrollment(student.getStudentId());
+        final ClassState classState = parse(stored);
+        final Roster roster = new Roster();
+        for (Student student : classState.getEnrolledList()) {
+            roster._students.put(student.getStudentId(), new Entry(student.getStudentName(), true, student.getTimestamp()));
+            _clock.observe(student.getTimestamp());
+        }
+        for (Student student : classState.getDiscardedList()) {
+            roster._students.put(student.getStudentId(), new Entry(student.getStudentName(), false, student.getTimestamp()));
+            _clock.observe(student.getTimestamp());
         }
+        roster._seats.set(classState.getEnrolledCount());
+
+        final Enrollments enrollments = _enrollments;
+        _enrollments = new Enrollments(enrollments._capacity, enrollments._open, classState.getEnrollmentsTimestamp());
+        _clock.observe(classState.getEnrollmentsTimestamp());
+
+        // The class did not change, so the version stays the same
+        _roster = roster;
+        _stored = null;
+        return roster;
     }
 
-    public synchronized void setFromClass(Class _class) {
-        this._capacity = _class.getCapacity();
-        this._openEnrollments = _class.getOpenEnrollments();
-        this._enrolled = _class.getEnrolled();
-        this._discarded = _class.getDiscarded();
+    private static ClassState parse(ByteBuffer stored) {
+        try {
+            return ClassState.parseFrom(stored.duplicate());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Corrupted class snapshot", e);
+        }
     }
 }
@@ -0,0 +1,92 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ClassRegistry {
+
+    // Class used when a request does not name one
+    public static final String DEFAULT_CLASS = "";
+
+    // Reported for every class this server does not host, it has no vector clock and is never written to
+    private static final Class EMPTY = new Class();
+
+    private final ConcurrentHashMap<String, Class> _classes = new ConcurrentHashMap<>();
+
+    // Shared by the vector clocks of every class, so a server has the same slot in all of them
+    private final ReplicaIndex _replicas = new ReplicaIndex();
+
+    // Journals the writes issued on every class, if the server keeps its classes on disk
+    private volatile WriteAheadLog _wal;
+
+    private final String _host;
+    private final int _port;
+
+    public ClassRegistry(String host, int port) {
+        this._host = host;
+        this._port = port;
+    }
+
+    /**
+     * Gets the class with the given id, creating it (with its own
+     * vector clock) if this server does not host it yet. Only opening a
+     * class, or merging another server's writes of it, creates it
+     *
+     * @param classId
+     * @return
+     */
+    public Class getOrCreate(String classId) {
+        return _classes.computeIfAbsent(classId, id -> {
+            final Class turma = new Class(new VectorClock(_replicas, _host, _port));
+            journal(id, turma);
+            return turma;
+        });
+    }
+
+    /**
+     * Journals the writes issued from now on, on every class, to the given log
+     *
+     * @param wal
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        _wal = wal;
+        _classes.forEach(this::journal);
+    }
+
+    private void journal(String classId, Class turma) {
+        final WriteAheadLog wal = _wal;
+        if (wal != null) {
+            turma.getOperationLog().setJournal(operation -> wal.append(classId, operation));
+        }
+    }
+
+    /**
+     * Gets the class with the given id for reading. Unknown classes are
+     * reported as a shared empty class, without being registered
+     *
+     * @param classId
+     * @return
+     */
+    public Class get(String classId) {
+        return _classes.getOrDefault(classId, EMPTY);
+    }
+
+    /**
+     * Returns true if this server hosts the given class
+     *
+     * @param classId
+     * @return
+     */
+    public boolean contains(String classId) {
+        return _classes.containsKey(classId);
+    }
+
+    /**
+     * Gets every hosted class indexed by its id
+     *
+     * @return
+     */
+    public Map<String, Class> getClasses() {
+        return _classes;
+    }
+}
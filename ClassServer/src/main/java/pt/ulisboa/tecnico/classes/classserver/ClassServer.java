@@ -1,20 +1,44 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import io.grpc.BindableService;
+import io.grpc.Channel;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.SessionToken;
+import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.ServerStatus;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorServiceGrpc;
+import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc;
 import sun.misc.Signal;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ClassServer {
 
     private static Server _server;
-    private static final int _period = 60000;
 
-    private static boolean _active;
+    private static volatile boolean _active;
+
+    // Set while a reactivated server gets the writes it missed from its peers
+    private static volatile boolean _catchingUp = false;
     private static boolean _debug = false;
+    private static boolean _wireCache = false;
+
+    // Secondaries accept writes too in multi-writer mode, only the primary does in single-writer mode
+    private static boolean _multiWriter = false;
+
+    // In single-writer mode, secondaries forward the writes they get to the primary
+    private static final boolean FORWARD_WRITES = !"false".equals(System.getProperty("writeForwarding"));
     private static ClassServerFrontend _classServerFrontend;
 
     private static String _host;
@@ -22,11 +46,23 @@ public class ClassServer {
     private static String _qualifier;
     private static String _service;
 
-    private static Class _class;
+    private static ClassRegistry _classes;
+    private static ClassServerServiceImpl _classServerImpl;
+
+    private static GossipScheduler _gossip;
 
-    private static VectorClock _vectorClock;
+    // Snapshots and write-ahead log, only kept when a data directory is given
+    private static Persistence _persistence;
 
-    private static Timer _timer;
+    // Time a read waits for the writes of the client's session to reach this server, in milliseconds
+    private static final long SESSION_WAIT = Long.getLong("sessionWait", 500);
+
+    // Answers the reads whose wait ran out
+    private static final ScheduledExecutorService _sessionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "session-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     // error format
     private static final String _error_fmt = "ERROR: %s\n";
@@ -36,10 +72,6 @@ public class ClassServer {
             System.err.printf("D> %s%n%n", debugMessage);
     }
 
-    private static void setTurma(Class turma) {
-        _class = turma;
-    }
-
     public static void main(String[] args) throws Exception {
 
         // Handle SIGINT
@@ -54,28 +86,59 @@ public class ClassServer {
             _debug = true;
         }
 
+        // Serve listClass from the encoded response cached for each class version
+        if (System.getProperty("wireCache") != null) {
+            _wireCache = true;
+        }
+
+        final String writeMode = System.getProperty("writeMode", "single");
+        if (!writeMode.equals("multi") && !writeMode.equals("single")) {
+            System.err.printf(_error_fmt, "Wrong write mode. Try 'multi' or 'single'");
+            return;
+        }
+        _multiWriter = writeMode.equals("multi");
+
         _host = args[0];
         _port = Integer.parseInt(args[1]);
         _qualifier = args[2];
         _service = "Turmas";
 
-        setTurma(new Class());
-
-        // Create vector clock for server. First number is the server's own clock.
-        _vectorClock = new VectorClock(_host, _port);
+        // Every class hosted by this server has its own lock and vector clock
+        _classes = new ClassRegistry(_host, _port);
+
+        // Restart from the classes saved on disk
+        if (System.getProperty("dataDir") != null) {
+            _persistence = new Persistence(Path.of(System.getProperty("dataDir"), _host + "_" + _port));
+            _persistence.recover(_classes);
+            _classes.setWriteAheadLog(_persistence.getWriteAheadLog());
+            _persistence.start(_classes);
+        } else if (System.getProperty("snapshotFile") != null) {
+            // Start from a snapshot captured from another server
+            SnapshotFile.read(Path.of(System.getProperty("snapshotFile")), _classes);
+        }
 
-        final BindableService AdminImpl = new AdminServiceImpl(_class);
-        final BindableService StudentImpl = new StudentServiceImpl(_class, _vectorClock);
-        final BindableService ProfessorImpl = new ProfessorServiceImpl(_class, _vectorClock);
-        final BindableService ClassServerImpl = new ClassServerServiceImpl(_class, _vectorClock, _qualifier, _port);
+        final BindableService AdminImpl = new AdminServiceImpl(_classes);
+        final StudentServiceImpl StudentImpl = new StudentServiceImpl(_classes);
+        final ProfessorServiceImpl ProfessorImpl = new ProfessorServiceImpl(_classes);
+        _classServerImpl = new ClassServerServiceImpl(_classes, _qualifier, _port);
+
+        ServerServiceDefinition StudentService = StudentImpl.bindService();
+        ServerServiceDefinition ProfessorService = ProfessorImpl.bindService();
+        if (_wireCache) {
+            StudentService = PreSerializedResponses.bindListClass(StudentService,
+                    StudentServiceGrpc.getListClassMethod(), _classes);
+            ProfessorService = PreSerializedResponses.bindListClass(ProfessorService,
+                    ProfessorServiceGrpc.getListClassMethod(), _classes);
+        }
 
         // Create a new server to listen on port and add remote services
         _server = ServerBuilder
                 .forPort(_port)
-                .addService(StudentImpl)
-                .addService(ProfessorImpl)
+                .addService(StudentService)
+                .addService(ProfessorService)
                 .addService(AdminImpl)
-                .addService(ClassServerImpl)
+                .addService(_classServerImpl)
+                .addService(new HealthServiceImpl())
                 .build();
 
         // Start server
@@ -85,33 +148,28 @@ public class ClassServer {
         _classServerFrontend = new ClassServerFrontend();
         _classServerFrontend.register(_service, _qualifier, _host, _port);
 
+        // Get the current state from a live peer, instead of waiting for its gossip rounds
+        if (!"false".equals(System.getProperty("bootstrap"))) {
+            bootstrap();
+        }
+
+        // Rounds only run once gossip is activated
+        _gossip = new GossipScheduler(() -> _classServerFrontend.propagateState(_classes));
+
         _active = true;
 
         debug(ClassServer.class.getSimpleName());
-        debug(String.format("Server started on %s port: %d with qualifier %s", _host, _port, _qualifier));
+        debug(String.format("Server started on %s port: %d with qualifier %s in %s-writer mode",
+                _host, _port, _qualifier, writeMode));
+        if (_wireCache) {
+            debug("Serving listClass from cached encoded responses");
+        }
 
         // Wait until server is terminated
         _server.awaitTermination();
 
     }
 
-    /**
-     * Schedule primary server state propagation
-     */
-    private static void setGossip() {
-        _timer = new Timer();
-
-        TimerTask gossip = new TimerTask() {
-            @Override
-            public void run() {
-                _classServerFrontend.propagateState(_class.createClassState(), _vectorClock);
-            }
-        };
-
-        // Every time a period goes by, gossip TimerTask run method is called
-        _timer.schedule(gossip, 0, _period);
-    }
-
     private static boolean parseArgs(String[] args) {
 
         if (args.length < 3) {
@@ -137,11 +195,45 @@ public class ClassServer {
     }
 
     /**
-     * Activates the ClassServer
+     * Merges the state of a peer into the hosted classes. The merged state
+     * is not in the write-ahead log, so a snapshot is taken to keep it
+     */
+    private static void bootstrap() {
+        final int count = _classServerFrontend.bootstrap(_classes, _classServerImpl::merge);
+        if (count > 0 && _persistence != null) {
+            try {
+                _persistence.snapshot(_classes);
+            } catch (IOException e) {
+                System.err.printf(_error_fmt, "Could not write snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Activates the ClassServer. A server that was inactive dropped the writes
+     * propagated to it meanwhile, so it gets them from its peers right away,
+     * instead of serving stale classes until their next gossip rounds
      */
-    public static void activateServer() {
+    public static synchronized void activateServer() {
         debug("Server activated");
+        if (_active) {
+            return;
+        }
         _active = true;
+
+        // Nothing to catch up with before the server is registered
+        if (_classServerFrontend == null) {
+            return;
+        }
+        _catchingUp = true;
+
+        final Thread thread = new Thread(() -> {
+            _classServerFrontend.catchUp(_classes, _classServerImpl::merge);
+            _catchingUp = false;
+            debug("Server caught up");
+        }, "catch-up");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
@@ -162,25 +254,160 @@ public class ClassServer {
     }
 
     /**
-     * Activates timer to propagate state
+     * Returns true if ClassServer takes writes from clients: the primary
+     * always does, secondaries only in multi-writer mode
+     *
+     * @return
+     */
+    public static boolean acceptsWrites() {
+        return _multiWriter || "P".equals(_qualifier);
+    }
+
+    /**
+     * Hands a client's write that this server does not take to the primary,
+     * relaying the primary's response. Without forwarding, or before the server is
+     * registered, the client gets the refused response and retries on the primary itself
+     *
+     * @param write sends the write over the given channel
+     * @param observer
+     * @param refused response with WRITING_NOT_SUPPORTED
+     */
+    public static <T> void forwardWrite(Function<Channel, ListenableFuture<T>> write, StreamObserver<T> observer,
+                                        T refused) {
+        if (!FORWARD_WRITES || _classServerFrontend == null) {
+            observer.onNext(refused);
+            observer.onCompleted();
+            return;
+        }
+        debug("SERVER: Forwarding write to the primary");
+        _classServerFrontend.forward(write, observer, refused);
+    }
+
+    /**
+     * Checks whether a class can be read here, the one rule every listClass follows.
+     * A class missing writes of the client's session waits up to SESSION_WAIT for
+     * gossip to bring them, without holding the thread serving the read
+     *
+     * @param turma
+     * @param token sent by the client, empty if it made no writes
+     * @param maxStaleness sent by the client, 0 for no bound
+     * @param reply given OK, or INACTIVE_SERVER or STALE_REPLICA if the client has to read elsewhere
+     */
+    public static void canServe(Class turma, SessionToken token, long maxStaleness, Consumer<ResponseCode> reply) {
+        if (!isActive()) {
+            reply.accept(ResponseCode.INACTIVE_SERVER);
+            return;
+        }
+        if (!isFresh(turma, maxStaleness)) {
+            reply.accept(ResponseCode.STALE_REPLICA);
+            return;
+        }
+        if (token.getValuesCount() == 0) {
+            reply.accept(ResponseCode.OK);
+            return;
+        }
+
+        // The class is not hosted here yet
+        final VectorClock vectorClock = turma.getVectorClock();
+        if (vectorClock == null) {
+            reply.accept(ResponseCode.STALE_REPLICA);
+            return;
+        }
+
+        vectorClock.whenDominates(token, SESSION_WAIT, _sessionTimer,
+                dominates -> reply.accept(dominates ? ResponseCode.OK : ResponseCode.STALE_REPLICA));
+    }
+
+    /**
+     * Returns true if a class is fresh enough for a read of data at most maxStaleness
+     * milliseconds old. The primary in single-writer mode takes every write as it
+     * happens, any other server is as fresh as the last time it found, in a gossip
+     * exchange either way, that each registered peer had no write it lacks
+     *
+     * @param turma
+     * @param maxStaleness in milliseconds, 0 for no bound
+     * @return
+     */
+    private static boolean isFresh(Class turma, long maxStaleness) {
+        if (maxStaleness <= 0 || (!_multiWriter && "P".equals(_qualifier)) || _classServerFrontend == null) {
+            return true;
+        }
+
+        final List<String> peers;
+        try {
+            peers = _classServerFrontend.lookupPeers();
+        } catch (StatusRuntimeException e) {
+            // Without knowing the peers, the read cannot be bounded
+            return false;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (String peer : peers) {
+            if (now - turma.getMergedAt(peer) > maxStaleness) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the status of the ClassServer, as seen by the admin
+     *
+     * @return
+     */
+    public static ServerStatus getStatus() {
+        if (!_active) {
+            return ServerStatus.INACTIVE;
+        }
+        return _catchingUp ? ServerStatus.CATCHING_UP : ServerStatus.ACTIVE;
+    }
+
+    /**
+     * Starts the scheduled state propagation
      */
     public static void activateGossip() {
-        // Schedule gossip state propagation
-        setGossip();
+        _gossip.start();
     }
 
     /**
-     * Suspends timer to propagate state
+     * Suspends the scheduled state propagation
      */
     public static void deactivateGossip() {
-        _timer.cancel();
+        _gossip.stop();
+    }
+
+    /**
+     * Called after a local write: waits until the write is on disk,
+     * if the server keeps its classes on disk, and has it propagated soon
+     */
+    public static void commit() {
+        if (_persistence != null) {
+            _persistence.getWriteAheadLog().sync();
+        }
+        if (_gossip != null) {
+            _gossip.wrote();
+        }
     }
 
     /**
      * Forces propagation of state
      */
     public static void gossip() {
-        _classServerFrontend.propagateState(_class.createClassState(), _vectorClock);
+        _classServerFrontend.propagateState(_classes);
+    }
+
+    /**
+     * Writes a snapshot of every class, next to the server's data if it keeps any
+     *
+     * @return the path of the snapshot file
+     * @throws IOException
+     */
+    public static Path writeSnapshot() throws IOException {
+        final Path directory = (_persistence != null)
+                ? _persistence.getDirectory() : Path.of(System.getProperty("java.io.tmpdir"));
+        final Path path = directory.resolve(String.format("dump-%s_%d-%d.bin", _host, _port, System.currentTimeMillis()));
+        SnapshotFile.write(path, _classes.getClasses());
+        return path.toAbsolutePath();
     }
 
     /**
@@ -194,6 +421,9 @@ public class ClassServer {
             debug("Could not remove server from naming server");
         }
         _server.shutdown();
+        if (_persistence != null) {
+            _persistence.close(_classes);
+        }
         System.exit(0);
     }
 
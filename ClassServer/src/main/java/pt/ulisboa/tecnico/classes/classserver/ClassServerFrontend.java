@@ -1,22 +1,47 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import pt.ulisboa.tecnico.classes.NamingChannels;
+import pt.ulisboa.tecnico.classes.NamingView;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.BootstrapChunk;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.BootstrapRequest;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.ClassDigest;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Clock;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateRequest;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateResponse;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PullStateRequest;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PullStateResponse;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.DeleteRequest;
-import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupRequest;
-import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.HeartbeatRequest;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.RegisterRequest;
 import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ClassServerFrontend {
 
@@ -26,24 +51,81 @@ public class ClassServerFrontend {
     // Error messages
     private final String NAMING_SERVER_UNREACHABLE = "Unreachable naming server...";
     private final String FAILED_TO_PROPAGATE_STATE = "Failed to propagate state...";
+    private final String FAILED_TO_PROPAGATE_STATE_TO = "Failed to propagate state to %s...";
+    private final String FAILED_TO_BOOTSTRAP_FROM = "Failed to get state from %s...";
+    private final String FAILED_TO_CATCH_UP = "Failed to catch up...";
+    private final String FAILED_TO_CATCH_UP_WITH = "Failed to catch up with %s...";
+    private final String FAILED_TO_FORWARD_TO = "Failed to forward write to %s...";
+
+    // Time each server has to reply to a gossip round, in milliseconds
+    private static final long GOSSIP_DEADLINE = Long.getLong("gossipDeadline", 2000);
+
+    // Time a peer has to stream its whole state to a joining server, in milliseconds
+    private static final long BOOTSTRAP_DEADLINE = Long.getLong("bootstrapDeadline", 30000);
+
+    // Time the primary has to reply to a write forwarded to it, in milliseconds
+    private static final long FORWARD_DEADLINE = Long.getLong("forwardDeadline", 2000);
+
+    // Lease asked for when registering, in milliseconds, renewed by a heartbeat every third of it
+    private static final long LEASE_TTL = Long.getLong("leaseTtl", 10000);
+
+    // Gives every forwarded write its deadline, whatever stub it is sent with
+    private static final ClientInterceptor FORWARD_DEADLINE_INTERCEPTOR = new ClientInterceptor() {
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return next.newCall(method, callOptions.withDeadlineAfter(FORWARD_DEADLINE, TimeUnit.MILLISECONDS));
+        }
+    };
+
+    /**
+     * Outcome of a gossip round for one server
+     */
+    private static class PeerReport {
+        private final boolean _failed;
+        private final String _outcome;
+
+        private PeerReport(boolean failed, String outcome) {
+            this._failed = failed;
+            this._outcome = outcome;
+        }
+    }
 
     private static NamingServerServiceGrpc.NamingServerServiceBlockingStub _stub;
     private static ManagedChannel _channel;
 
+    // Channels to the other servers, kept across gossip rounds
+    private final PeerChannelPool _peers = new PeerChannelPool();
+
     private String _host;
     private int _port;
     private String _qualifier;
 
+    // Registration of this server, sent again if its lease expires
+    private RegisterRequest _registration;
+
+    // Lease granted by the naming server, the one asked for until it replies
+    private volatile long _ttl = LEASE_TTL;
+
+    private final ScheduledExecutorService _heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Registered servers, and the primary among them, as watched on the naming server
+    private final NamingView _servers;
+    private final NamingView _primaries;
+
     /**
      * Create channel and stub to call remote services on naming server
      */
     public ClassServerFrontend() {
-        // Naming server address
-        String host = "localhost";
-        int port = 5000;
-        // Grpc
-        _channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        // Naming servers, any of which can take the calls
+        _channel = NamingChannels.create(NamingChannels.ENDPOINTS);
         _stub = NamingServerServiceGrpc.newBlockingStub(_channel);
+        _servers = new NamingView(_channel, "Turmas", List.of("S", "P"));
+        _primaries = new NamingView(_channel, "Turmas", List.of("P"));
     }
 
     /**
@@ -67,51 +149,297 @@ public class ClassServerFrontend {
                 .setServiceName(service)
                 .setAddress(host + ":" + port)
                 .addAllQualifiers(qualifiers)
+                .setTtl(LEASE_TTL)
                 .build();
+        _registration = request;
 
-        // Send request and catch exception if server is unreachable
+        // Send request and catch exception if server is unreachable.
+        // Heartbeats start either way, and register the server once the naming server replies
         try {
-            _stub.register(request);
+            _ttl = _stub.register(request).getTtl();
         } catch (StatusRuntimeException e) {
             System.err.printf(_error_fmt, NAMING_SERVER_UNREACHABLE);
         }
+        final long period = heartbeatPeriod();
+        _heartbeats.scheduleAtFixedRate(this::heartbeat, period, period, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Propagates state to the secondary servers
+     * Gets the time between heartbeats, a third of the lease granted, which is
+     * also the time each heartbeat has to reply
      *
-     * @param classState
+     * @return in milliseconds
      */
-    public void propagateState(ClassState classState, VectorClock vectorClock) {
-        if (!ClassServer.isActive()) {
+    private long heartbeatPeriod() {
+        return Math.max(1, _ttl / 3);
+    }
+
+    /**
+     * Renews the lease of this server on the naming server, registering it again if the lease expired
+     */
+    private void heartbeat() {
+        final HeartbeatRequest request = HeartbeatRequest.newBuilder()
+                .setServiceName(_registration.getServiceName())
+                .setAddress(_registration.getAddress())
+                .build();
+        try {
+            if (!_stub.withDeadlineAfter(heartbeatPeriod(), TimeUnit.MILLISECONDS).heartbeat(request).getRegistered()) {
+                ClassServer.debug("SERVER: Lease expired, registering again in Naming Server");
+                _ttl = _stub.withDeadlineAfter(heartbeatPeriod(), TimeUnit.MILLISECONDS).register(_registration).getTtl();
+            }
+        } catch (StatusRuntimeException e) {
+            // Tried again on the next heartbeat, before the lease expires
+            ClassServer.debug("SERVER: Heartbeat failed: " + e.getStatus());
+        }
+    }
+
+    /**
+     * Gets the address of every registered server, this one included
+     *
+     * @return
+     */
+    private List<String> lookupServers() {
+        return _servers.getAddresses();
+    }
+
+    /**
+     * Gets the address of every other registered server
+     *
+     * @return
+     */
+    public List<String> lookupPeers() {
+        final List<String> peers = new ArrayList<>(lookupServers());
+        peers.remove(_host + ":" + _port);
+        return peers;
+    }
+
+    /**
+     * Gets the address of the primary
+     *
+     * @return null if no primary is registered
+     */
+    private String lookupPrimary() {
+        final List<String> addresses = _primaries.getAddresses();
+        return addresses.isEmpty() ? null : addresses.get(0);
+    }
+
+    /**
+     * Forwards a client's write to the primary, over the pooled channel to it, and
+     * relays the primary's response. If the primary cannot be reached, the client
+     * gets the refused response and retries on the primary itself
+     *
+     * @param write sends the write over the given channel
+     * @param observer of the client's call
+     * @param refused response telling the client this server does not take writes
+     */
+    public <T> void forward(Function<Channel, ListenableFuture<T>> write, StreamObserver<T> observer, T refused) {
+        final String primary;
+        try {
+            primary = lookupPrimary();
+        } catch (StatusRuntimeException e) {
+            System.err.printf(_error_fmt, NAMING_SERVER_UNREACHABLE);
+            reply(observer, refused);
+            return;
+        }
+        if (primary == null) {
+            reply(observer, refused);
             return;
         }
 
-        ClassServer.debug("SERVER: Propagating State...");
+        final Channel channel = ClientInterceptors.intercept(_peers.get(primary), FORWARD_DEADLINE_INTERCEPTOR);
+        Futures.addCallback(write.apply(channel), new FutureCallback<>() {
+            @Override
+            public void onSuccess(T response) {
+                reply(observer, response);
+            }
 
-        final List<String> qualifiers = new ArrayList<>();
-        qualifiers.add("S");
-        qualifiers.add("P");
+            @Override
+            public void onFailure(Throwable t) {
+                // The request was checked here already, so the primary finds nothing else wrong with it
+                if (Status.fromThrowable(t).getCode() == Status.Code.INVALID_ARGUMENT) {
+                    observer.onError(t);
+                    return;
+                }
+                System.err.printf(_error_fmt, String.format(FAILED_TO_FORWARD_TO, primary));
+                reply(observer, refused);
+            }
+        }, MoreExecutors.directExecutor());
+    }
 
-        final LookupRequest requestL = LookupRequest.newBuilder().setServiceName("Turmas").addAllQualifiers(qualifiers)
-                .build();
-        final LookupResponse responseL;
+    private static <T> void reply(StreamObserver<T> observer, T response) {
+        observer.onNext(response);
+        observer.onCompleted();
+    }
 
+    /**
+     * Gets the state of every class from another server, streamed in chunks,
+     * so a joining server can serve without waiting for a gossip round.
+     * Peers are tried in turn until one streams its whole state
+     *
+     * @param classes
+     * @param merge merges the state of one class, as if it was propagated by the peer
+     * @return the number of classes received, or -1 if no peer could be reached
+     */
+    public int bootstrap(ClassRegistry classes, Consumer<PropagateStateRequest> merge) {
+        final List<String> serversList;
         try {
-            responseL = _stub.lookup(requestL);
+            serversList = lookupServers();
         } catch (StatusRuntimeException e) {
-            System.err.printf(_error_fmt, FAILED_TO_PROPAGATE_STATE);
+            System.err.printf(_error_fmt, NAMING_SERVER_UNREACHABLE);
+            return -1;
+        }
+
+        final String self = _host + ":" + _port;
+        for (String server : serversList) {
+            if (server.equals(self)) {
+                continue;
+            }
+
+            final long start = System.nanoTime();
+            try {
+                final int count = bootstrap(classes, merge, server);
+                ClassServer.debug(String.format("SERVER: Bootstrapped %d classes from %s in %dms",
+                        count, server, millis(start)));
+                return count;
+            } catch (StatusRuntimeException e) {
+                ClassServer.debug(String.format("SERVER: Bootstrap from %s failed in %dms (%s)",
+                        server, millis(start), e.getStatus().getCode()));
+                System.err.printf(_error_fmt, String.format(FAILED_TO_BOOTSTRAP_FROM, server));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the state streamed by one server, merging every class once all its chunks arrived
+     *
+     * @param classes
+     * @param merge
+     * @param server
+     * @return the number of classes received
+     */
+    private int bootstrap(ClassRegistry classes, Consumer<PropagateStateRequest> merge, String server) {
+        final ClassServerServiceGrpc.ClassServerServiceBlockingStub stub = ClassServerServiceGrpc
+                .newBlockingStub(_peers.get(server)).withDeadlineAfter(BOOTSTRAP_DEADLINE, TimeUnit.MILLISECONDS);
+        final Iterator<BootstrapChunk> chunks = stub.bootstrap(BootstrapRequest.newBuilder()
+                .setAddress(_host + ":" + _port).build());
+
+        final String[] address = server.split(":");
+        final Clock clock = Clock.newBuilder().setHost(address[0]).setPort(Integer.parseInt(address[1])).build();
+
+        int count = 0;
+        PropagateStateRequest.Builder request = null;
+        ClassState.Builder state = null;
+        while (chunks.hasNext()) {
+            final BootstrapChunk chunk = chunks.next();
+            if (chunk.hasVector()) {
+                request = PropagateStateRequest.newBuilder().setClassId(chunk.getClassId())
+                        .setQualifier(chunk.getQualifier()).setClock(clock).setVector(chunk.getVector());
+                state = chunk.getState().toBuilder();
+            } else {
+                state.addAllEnrolled(chunk.getState().getEnrolledList())
+                        .addAllDiscarded(chunk.getState().getDiscardedList());
+            }
+
+            if (chunk.getLast()) {
+                merge.accept(request.setClassState(state).build());
+
+                // The peer has every write in the state, so the next rounds only send it newer ones
+                classes.getOrCreate(chunk.getClassId()).getOperationLog().acknowledge(server, request.getVector());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the writes this server missed from every other server. Each server gets a
+     * single request, sent in parallel, with the vector clock of every hosted class,
+     * and replies with the writes on the classes this server is behind on
+     *
+     * @param classes
+     * @param merge merges the writes on one class, as if they were propagated by the peer
+     * @return the number of servers that replied
+     */
+    public int catchUp(ClassRegistry classes, Consumer<PropagateStateRequest> merge) {
+        final List<String> serversList;
+        try {
+            serversList = lookupServers();
+        } catch (StatusRuntimeException e) {
+            System.err.printf(_error_fmt, FAILED_TO_CATCH_UP);
+            return 0;
+        }
+
+        final PullStateRequest.Builder request = PullStateRequest.newBuilder().setAddress(_host + ":" + _port);
+        for (Map.Entry<String, Class> entry : classes.getClasses().entrySet()) {
+            request.addDigests(ClassDigest.newBuilder().setClassId(entry.getKey())
+                    .setVector(entry.getValue().getVectorClock().toMessage()));
+        }
+
+        final long start = System.nanoTime();
+        final Map<String, ListenableFuture<PullStateResponse>> calls = new LinkedHashMap<>();
+        for (String server : serversList) {
+            if (!server.equals(_host + ":" + _port)) {
+                calls.put(server, ClassServerServiceGrpc.newFutureStub(_peers.get(server))
+                        .withDeadlineAfter(GOSSIP_DEADLINE, TimeUnit.MILLISECONDS).pullState(request.build()));
+            }
+        }
+
+        int replied = 0;
+        for (Map.Entry<String, ListenableFuture<PullStateResponse>> call : calls.entrySet()) {
+            final PullStateResponse response;
+            try {
+                response = Futures.getUnchecked(call.getValue());
+            } catch (RuntimeException e) {
+                ClassServer.debug(String.format("SERVER: Catch up with %s failed (%s)",
+                        call.getKey(), Status.fromThrowable(e).getCode()));
+                System.err.printf(_error_fmt, String.format(FAILED_TO_CATCH_UP_WITH, call.getKey()));
+                continue;
+            }
+            if (response.getCode() != ResponseCode.OK) {
+                ClassServer.debug(String.format("SERVER: Catch up with %s replied %s", call.getKey(), response.getCode()));
+                continue;
+            }
+
+            for (PropagateStateRequest missed : response.getClassesList()) {
+                merge.accept(missed);
+            }
+            replied++;
+            ClassServer.debug(String.format("SERVER: Caught up with %s, behind on %d classes",
+                    call.getKey(), response.getClassesCount()));
+        }
+
+        ClassServer.debug(String.format("SERVER: Catch up with %d of %d peers took %dms",
+                replied, calls.size(), millis(start)));
+        return replied;
+    }
+
+    /**
+     * Propagates the state of every hosted class to the other servers
+     *
+     * @param classes
+     */
+    public void propagateState(ClassRegistry classes) {
+        if (!ClassServer.isActive()) {
             return;
         }
 
-        Clock ownClock = Clock.newBuilder().setHost(_host).setPort(_port).setValue(vectorClock.getClock(_host, _port)).build();
-        final PropagateStateRequest request = PropagateStateRequest.newBuilder().setClassState(classState)
-                .setClock(ownClock).setQualifier(_qualifier).build();
+        ClassServer.debug("SERVER: Propagating State...");
+
+        final List<String> serversList;
+        try {
+            serversList = lookupServers();
+        } catch (StatusRuntimeException e) {
+            System.err.printf(_error_fmt, FAILED_TO_PROPAGATE_STATE);
+            return;
+        }
 
-        // Get all secondary servers
-        List<String> serversList = responseL.getAddressList().stream().toList();
+        // Close the channels to servers that are no longer registered
+        _peers.retain(serversList);
 
-        // Propagate state to every other server
+        // Propagate state to every other server in parallel, each peer with its own deadline
+        final long roundStart = System.nanoTime();
+        final Map<String, ListenableFuture<PeerReport>> results = new LinkedHashMap<>();
         for (String server : serversList) {
 
             String[] address = server.split(":");
@@ -121,24 +449,121 @@ public class ClassServerFrontend {
                 continue;
             }
 
-            if (!vectorClock.contains(server)) {
-                vectorClock.updateClock(server, 0);
+            results.put(server, propagateState(classes, server));
+        }
+
+        // Wait for every peer to reply or fail, and report the round
+        final StringBuilder report = new StringBuilder(String.format("SERVER: Gossip round to %d peers", results.size()));
+        for (Map.Entry<String, ListenableFuture<PeerReport>> result : results.entrySet()) {
+            final PeerReport peer = Futures.getUnchecked(result.getValue());
+            report.append(String.format("%n\t%s %s", result.getKey(), peer._outcome));
+            if (peer._failed) {
+                System.err.printf(_error_fmt, String.format(FAILED_TO_PROPAGATE_STATE_TO, result.getKey()));
             }
+        }
+        report.append(String.format("%n\ttook %dms", millis(roundStart)));
+        ClassServer.debug(report.toString());
 
+        ClassServer.debug("SERVER: Peer " + _peers.getMetrics());
+    }
 
-            // Setup channel and stub to send propagate state request
-            ManagedChannel _auxChannel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
-            ClassServerServiceGrpc.ClassServerServiceBlockingStub stub = ClassServerServiceGrpc
-                    .newBlockingStub(_auxChannel);
+    /**
+     * Sends the state of every hosted class to one server, without waiting for the replies.
+     * Every request to the server shares the same deadline
+     *
+     * @param classes
+     * @param server
+     * @return the outcome of the propagation to the server, for the round report
+     */
+    private ListenableFuture<PeerReport> propagateState(ClassRegistry classes, String server) {
+        final long start = System.nanoTime();
+
+        // Stub to send propagate state requests, over the pooled channel to the peer
+        final ClassServerServiceGrpc.ClassServerServiceFutureStub stub = ClassServerServiceGrpc
+                .newFutureStub(_peers.get(server)).withDeadlineAfter(GOSSIP_DEADLINE, TimeUnit.MILLISECONDS);
+
+        // One request per class, each one carrying that class's own clock
+        final List<ListenableFuture<PropagateStateResponse>> calls = new ArrayList<>();
+        for (Map.Entry<String, Class> entry : classes.getClasses().entrySet()) {
+            final Class turma = entry.getValue();
+            final VectorClock vectorClock = turma.getVectorClock();
+            final OperationLog log = turma.getOperationLog();
+
+            Clock ownClock = Clock.newBuilder().setHost(_host).setPort(_port)
+                    .setValue(vectorClock.getClock(_host, _port)).build();
+
+            // Send only the writes the peer has not acknowledged yet. If some of them
+            // are no longer in the log, the state is only sent where the peer's differs
+            final PropagateStateRequest.Builder request = turma.createPropagateStateRequest(log.getAcknowledged(server))
+                    .setClock(ownClock).setQualifier(_qualifier).setClassId(entry.getKey());
+            final String sent = request.hasClassState() ? "digest" : request.getOperationsCount() + " operations";
+
+            final ListenableFuture<PropagateStateResponse> call = request.hasClassState()
+                    ? propagateDigest(stub, turma, request) : stub.propagateState(request.build());
+            Futures.addCallback(call, new FutureCallback<>() {
+                @Override
+                public void onSuccess(PropagateStateResponse response) {
+                    if (response.getCode() == ResponseCode.OK) {
+                        log.acknowledge(server, response.getVector());
+                        // The peer replied with every write it has, so none is missing here
+                        if (vectorClock.dominates(response.getVector())) {
+                            turma.markMerged(server);
+                        }
+                        ClassServer.debug(String.format("SERVER: Propagated class '%s' to %s successfully (%s)",
+                                entry.getKey(), server, sent));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // Not acknowledged, so the same writes are sent again next round
+                }
+            }, MoreExecutors.directExecutor());
+            calls.add(call);
+        }
 
-            PropagateStateResponse response = stub.propagateState(request);
+        final ListenableFuture<PeerReport> replied = Futures.transform(Futures.allAsList(calls), responses -> {
+            for (PropagateStateResponse response : responses) {
+                if (response.getCode() != ResponseCode.OK) {
+                    return new PeerReport(false, String.format("replied %s in %dms", response.getCode(), millis(start)));
+                }
+            }
+            return new PeerReport(false, String.format("ok in %dms", millis(start)));
+        }, MoreExecutors.directExecutor());
 
-            _auxChannel.shutdown();
+        return Futures.catching(replied, Throwable.class, e -> new PeerReport(true, String.format("failed in %dms (%s)",
+                millis(start), Status.fromThrowable(e).getCode())), MoreExecutors.directExecutor());
+    }
 
-            if (response.getCode() == ResponseCode.OK) {
-                ClassServer.debug(String.format("SERVER: Propagated to %s:%s successfully", host, port));
+    /**
+     * Sends the digest of a class's roster instead of its state, and then only
+     * the buckets of the state the peer replied that differ from its own.
+     * Both requests carry the same state and vector clock
+     *
+     * @param stub
+     * @param turma
+     * @param request with the class state
+     * @return the last reply of the peer
+     */
+    private ListenableFuture<PropagateStateResponse> propagateDigest(
+            ClassServerServiceGrpc.ClassServerServiceFutureStub stub, Class turma, PropagateStateRequest.Builder request) {
+        final ClassState classState = request.getClassState();
+        final PropagateStateRequest digest = request.clone().clearClassState()
+                .setDigest(BucketDigest.toMessage(turma.createDigest(classState))).build();
+
+        return Futures.transformAsync(stub.propagateState(digest), response -> {
+            if (response.getCode() != ResponseCode.OK || response.getBucketsCount() == 0) {
+                return Futures.immediateFuture(response);
             }
-        }
+            ClassServer.debug(String.format("SERVER: Sending %d differing buckets of class '%s'",
+                    response.getBucketsCount(), request.getClassId()));
+            return stub.propagateState(request
+                    .setClassState(BucketDigest.filter(classState, response.getBucketsList())).build());
+        }, MoreExecutors.directExecutor());
+    }
+
+    private static long millis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
     }
 
     /**
@@ -150,6 +575,7 @@ public class ClassServerFrontend {
      * @return
      */
     public boolean exit(String service, String host, int port) {
+        _heartbeats.shutdownNow();
 
         final DeleteRequest request = DeleteRequest.newBuilder()
                 .setServiceName(service)
@@ -166,7 +592,10 @@ public class ClassServerFrontend {
             System.err.printf(_error_fmt, NAMING_SERVER_UNREACHABLE);
             success = false;
         } finally {
+            _servers.close();
+            _primaries.close();
             _channel.shutdown();
+            _peers.shutdown();
         }
 
         return success;
@@ -1,27 +1,33 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
-import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.BootstrapChunk;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.BootstrapRequest;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.ClassDigest;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Clock;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Operation;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateRequest;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateResponse;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PullStateRequest;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PullStateResponse;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerServiceGrpc.ClassServerServiceImplBase;
 
-import javax.crypto.spec.PSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ClassServerServiceImpl extends ClassServerServiceImplBase {
-    final private Class _class;
-
-    private final VectorClock _vectorClock;
+    final private ClassRegistry _classes;
 
     private final String _qualifier;
 
     private final Integer _port;
 
-    public ClassServerServiceImpl(Class _class, VectorClock vectorClock, String qualifier, Integer port) {
-        this._class = _class;
-        this._vectorClock = vectorClock;
+    public ClassServerServiceImpl(ClassRegistry classes, String qualifier, Integer port) {
+        this._classes = classes;
         this._qualifier = qualifier;
         this._port = port;
     }
@@ -30,7 +36,7 @@ public class ClassServerServiceImpl extends ClassServerServiceImplBase {
     public void propagateState(PropagateStateRequest request, StreamObserver<PropagateStateResponse> responseObserver) {
         if (!ClassServer.isActive()) {
             PropagateStateResponse response = PropagateStateResponse.newBuilder()
-                    .setCode(ResponseCode.OK).build();
+                    .setCode(ResponseCode.INACTIVE_SERVER).build();
 
             responseObserver.onNext(response);
             responseObserver.onCompleted();
@@ -38,88 +44,202 @@ public class ClassServerServiceImpl extends ClassServerServiceImplBase {
         }
 
 
-        ClassServer.debug("SERVER: State Propagation received");
-
-        ClassesDefinitions.ClassState serverState = request.getClassState();
-        String serverQualifier = request.getQualifier();
-        Integer serverPort = request.getClock().getPort();
-        String serverHost = request.getClock().getHost();
-        Integer serverClock = request.getClock().getValue();
-
-        boolean wasUpdated = false;
-
-        // compared saved clock with received one
-        if (_vectorClock.getClock(serverHost, serverPort) < serverClock) {
-            if (_qualifier.equals("P") || (serverQualifier.equals("S") && _port < serverPort)) {
-                synchronized (_class) {
-                    // The capacity value will always be updated to the highest one
-                    // Open enrollments boolean always set equal to incoming class state's value
-                    if (serverState.getOpenEnrollments()) {
-                        _class.openEnrollments(serverState.getCapacity());
-                    } else {
-                        _class.setCapacity(serverState.getCapacity());
-                    }
-
-                    // Enrolled students exceed class capacity
-                    for (Student student : serverState.getEnrolledList()) {
-                        String studentId = student.getStudentId();
-                        if (!_class.isFull()) {
-                            if (!_class.isDiscarded(studentId)) {
-                                _class.enroll(studentId, student.getStudentName());
-                            }
-                        } else if (!_class.isEnrolled(studentId)) {
-                            _class.cancelEnrollment(studentId);
-                        }
-                    }
-
-                    for (Student student : serverState.getDiscardedList()) {
-                        if (!_class.isEnrolled(student.getStudentId())) {
-                            _class.cancelEnrollment(student.getStudentId());
-                        }
-                    }
-                }
-            } else {
-                synchronized (_class) {
-                    Class newClass = new Class(serverState);
-
-                    // The capacity value will always be updated to the highest one
-                    // Open enrollments boolean always set equal to incoming class state's value
-                    if (_class.getOpenEnrollments()) {
-                        newClass.openEnrollments(_class.getCapacity());
-                    } else {
-                        newClass.setCapacity(serverState.getCapacity());
-                    }
-
-                    for (String studentId : _class.getEnrolled().keySet()) {
-                        if (!newClass.isFull()) {
-                            if (!newClass.isDiscarded(studentId)) {
-                                newClass.enroll(studentId, _class.getName(studentId));
-                            }
-                        } else if (!newClass.isEnrolled(studentId)) {
-                            newClass.cancelEnrollment(studentId);
-                        }
-                    }
-
-                    for (String studentId : _class.getDiscarded().keySet()) {
-                        if (!newClass.isEnrolled(studentId)) {
-                            newClass.cancelEnrollment(studentId);
-                        }
-                    }
-
-                    _class.setFromClass(newClass);
+        ClassServer.debug(String.format("SERVER: State Propagation received for class '%s'", request.getClassId()));
+
+        final PropagateStateResponse.Builder response = PropagateStateResponse.newBuilder().setCode(ResponseCode.OK);
+        if (!_classes.contains(request.getClassId()) && !request.hasClassState() && request.getOperationsCount() == 0) {
+            // Not hosted here and nothing to create it from, so every bucket is asked for
+            // and the empty vector clock tells the sender this server has none of its writes
+            if (request.hasDigest()) {
+                for (int bucket = 0; bucket <= BucketDigest.BUCKETS; bucket++) {
+                    response.addBuckets(bucket);
                 }
             }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        final VectorClock vectorClock;
+        if (request.hasDigest()) {
+            final Class turma = _classes.get(request.getClassId());
+            vectorClock = turma.getVectorClock();
+            if (!vectorClock.dominates(request.getVector())) {
+                response.addAllBuckets(compareDigest(turma, request));
+            }
+            if (vectorClock.dominates(request.getVector())) {
+                turma.markMerged(VectorClock.server(request.getClock()));
+            }
+        } else {
+            vectorClock = merge(request);
+        }
+
+        // Reply with the vector clock, so the sender knows which writes to send next time
+        response.setVector(vectorClock.toMessage());
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
 
-            _vectorClock.updateClock(serverHost, serverPort, serverClock);
-            _vectorClock.incrementClock();
+    /**
+     * Compares the digest of a class's roster with the one sent by another server.
+     * If they match, the class already has every write the sender has, so the
+     * sender's vector clock is merged without sending the state
+     *
+     * @param turma
+     * @param request
+     * @return the buckets the rosters differ in
+     */
+    private List<Integer> compareDigest(Class turma, PropagateStateRequest request) {
+        final List<Integer> differing = BucketDigest.differing(turma.createDigest(turma.createReplicaState()), request.getDigest());
+        if (differing.isEmpty()) {
+            mergeVector(turma, request);
         }
+        ClassServer.debug(String.format("SERVER: Class '%s' differs in %d buckets",
+                request.getClassId(), differing.size()));
+        return differing;
+    }
 
+    /**
+     * Merges the writes or the class state sent by another server, creating
+     * the class if this server does not host it yet
+     *
+     * @param request
+     * @return the vector clock of the class
+     */
+    public VectorClock merge(PropagateStateRequest request) {
+        final Class turma = _classes.getOrCreate(request.getClassId());
+        final VectorClock vectorClock = turma.getVectorClock();
+
+        // Nothing to merge if this server has already seen every write the sender has,
+        // so the class lock is not even taken.
+        // A full class state is only sent when the sender no longer has the missing writes in its log
+        if (vectorClock.dominates(request.getVector())) {
+            ClassServer.debug(String.format("SERVER: Class '%s' already up to date", request.getClassId()));
+        } else if (request.hasClassState()) {
+            mergeState(turma, request);
+        } else {
+            applyOperations(turma, request.getOperationsList());
+        }
 
-        PropagateStateResponse response = PropagateStateResponse.newBuilder()
-                .setCode(ResponseCode.OK).build();
+        // Up to date with the sender, unless a gap in its writes stopped the merge
+        if (vectorClock.dominates(request.getVector())) {
+            turma.markMerged(VectorClock.server(request.getClock()));
+        }
+        return vectorClock;
+    }
+
+    @Override
+    public void bootstrap(BootstrapRequest request, StreamObserver<BootstrapChunk> responseObserver) {
+        if (!ClassServer.isActive()) {
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("Inactive server").asRuntimeException());
+            return;
+        }
+
+        ClassServer.debug(String.format("SERVER: Bootstrap requested by %s", request.getAddress()));
+
+        final ServerCallStreamObserver<BootstrapChunk> observer = (ServerCallStreamObserver<BootstrapChunk>) responseObserver;
+        observer.setOnReadyHandler(new BootstrapStream(observer, _classes, _qualifier, request.getAddress()));
+    }
 
-        responseObserver.onNext(response);
+    @Override
+    public void pullState(PullStateRequest request, StreamObserver<PullStateResponse> responseObserver) {
+        if (!ClassServer.isActive()) {
+            responseObserver.onNext(PullStateResponse.newBuilder().setCode(ResponseCode.INACTIVE_SERVER).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        ClassServer.debug(String.format("SERVER: Catch up requested by %s", request.getAddress()));
+
+        final Map<String, ClassDigest> digests = new HashMap<>();
+        for (ClassDigest digest : request.getDigestsList()) {
+            digests.put(digest.getClassId(), digest);
+        }
+
+        // Every class the requester is behind on, including the ones it does not host
+        final PullStateResponse.Builder response = PullStateResponse.newBuilder().setCode(ResponseCode.OK);
+        for (Map.Entry<String, Class> entry : _classes.getClasses().entrySet()) {
+            final Class turma = entry.getValue();
+            final VectorClock vectorClock = turma.getVectorClock();
+            final ClassDigest digest = digests.get(entry.getKey());
+            final int[] known = (digest != null) ? vectorClock.fromMessage(digest.getVector()) : new int[0];
+
+            final PropagateStateRequest.Builder missed = turma.createPropagateStateRequest(known);
+            if (missed.hasClassState() || missed.getOperationsCount() > 0) {
+                final Clock ownClock = Clock.newBuilder().setHost(vectorClock.getHost()).setPort(_port)
+                        .setValue(vectorClock.getClock(vectorClock.getSelf())).build();
+                response.addClasses(missed.setClock(ownClock).setQualifier(_qualifier).setClassId(entry.getKey()));
+            }
+        }
+
+        responseObserver.onNext(response.build());
         responseObserver.onCompleted();
     }
 
+    /**
+     * Applies, in order, the received writes this server has not applied yet,
+     * then keeps the class within its capacity
+     *
+     * @param turma
+     * @param operations
+     */
+    private void applyOperations(Class turma, List<Operation> operations) {
+        final VectorClock vectorClock = turma.getVectorClock();
+        final ReplicaIndex replicas = vectorClock.getIndex();
+
+        synchronized (turma) {
+            for (Operation operation : operations) {
+                final int origin = replicas.slot(VectorClock.server(operation.getClock()));
+                final int value = operation.getClock().getValue();
+
+                // An earlier write from the same server is missing, as when this server restarted
+                // from an older state. The reply makes the sender resend from what is applied here
+                if (value > vectorClock.getClock(origin) + 1) {
+                    break;
+                }
+                if (value > vectorClock.getClock(origin)) {
+                    turma.apply(origin, operation);
+                    vectorClock.mergeClock(origin, value);
+                }
+            }
+            turma.enforceCapacity();
+        }
+    }
+
+    /**
+     * Merges a full class state received from another server. The roster is
+     * merged student by student without the class lock, which is only taken
+     * to keep the class within its capacity afterwards
+     *
+     * @param turma
+     * @param request
+     */
+    private void mergeState(Class turma, PropagateStateRequest request) {
+        turma.merge(request.getClassState());
+        synchronized (turma) {
+            turma.enforceCapacity();
+        }
+        mergeVector(turma, request);
+    }
+
+    /**
+     * Merges the vector clock of a class state merged from another server.
+     * The merged writes are not in this server's log, so peers missing them get the full state
+     *
+     * @param turma
+     * @param request
+     */
+    private void mergeVector(Class turma, PropagateStateRequest request) {
+        final VectorClock vectorClock = turma.getVectorClock();
+        final int[] missing = vectorClock.fromMessage(request.getVector());
+        for (int slot = 0; slot < missing.length; slot++) {
+            if (missing[slot] <= vectorClock.getClock(slot)) {
+                missing[slot] = 0;
+            }
+        }
+        turma.getOperationLog().markMissing(missing);
+        vectorClock.merge(missing);
+    }
+
 }
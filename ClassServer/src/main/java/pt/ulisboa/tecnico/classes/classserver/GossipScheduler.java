@@ -0,0 +1,118 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs gossip rounds soon after local writes and backs off while idle.
+ * A burst of writes is sent in a single round, at most one round every
+ * minimum interval, and every round without writes doubles the wait
+ * for the next one, up to the maximum interval
+ */
+public class GossipScheduler {
+
+    // Interval bounds, in milliseconds
+    private static final long MIN_INTERVAL = Long.getLong("gossipMinInterval", 200);
+    private static final long MAX_INTERVAL = Long.getLong("gossipMaxInterval", 60000);
+
+    private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "gossip");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Runnable _round;
+
+    // Wait before the next round if no writes happen in the meantime
+    private long _interval = MIN_INTERVAL;
+
+    // Local writes not yet sent by a round
+    private boolean _pending = false;
+
+    private boolean _running = false;
+    private ScheduledFuture<?> _next;
+
+    // Changes every time rounds are stopped, so a round started before
+    // a stop does not schedule the next one after a new start
+    private long _generation = 0;
+
+    public GossipScheduler(Runnable round) {
+        this._round = round;
+    }
+
+    /**
+     * Starts running rounds, beginning with one right away. Does nothing if already started
+     */
+    public synchronized void start() {
+        if (_running) {
+            return;
+        }
+        _running = true;
+        _interval = MIN_INTERVAL;
+        schedule(0);
+    }
+
+    /**
+     * Stops running rounds. A round already running is not interrupted
+     */
+    public synchronized void stop() {
+        _running = false;
+        _generation++;
+        if (_next != null) {
+            _next.cancel(false);
+            _next = null;
+        }
+    }
+
+    /**
+     * Records a local write, bringing the next round forward to the minimum interval
+     */
+    public synchronized void wrote() {
+        _pending = true;
+        _interval = MIN_INTERVAL;
+
+        // A round already running reschedules itself once it is done
+        if (_running && _next != null && _next.getDelay(TimeUnit.MILLISECONDS) > MIN_INTERVAL) {
+            _next.cancel(false);
+            schedule(MIN_INTERVAL);
+        }
+    }
+
+    private void schedule(long delay) {
+        final long generation = _generation;
+        _next = _executor.schedule(() -> run(generation), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(long generation) {
+        final boolean pending;
+        synchronized (this) {
+            pending = _pending;
+            _pending = false;
+        }
+
+        try {
+            _round.run();
+        } catch (RuntimeException e) {
+            // The next rounds must still run
+            ClassServer.debug("SERVER: Gossip round failed: " + e.getMessage());
+        }
+
+        synchronized (this) {
+            if (!_running || generation != _generation) {
+                return;
+            }
+            if (_pending) {
+                // Written during the round
+                schedule(MIN_INTERVAL);
+            } else {
+                if (!pending) {
+                    _interval = Math.min(_interval * 2, MAX_INTERVAL);
+                }
+                schedule(_interval);
+            }
+            ClassServer.debug(String.format("SERVER: Next gossip round in %dms", _next.getDelay(TimeUnit.MILLISECONDS)));
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import io.grpc.stub.StreamObserver;
+
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.ProbeRequest;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.ProbeResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.HealthServiceGrpc;
+
+/**
+ * Answers the naming server's health probes, which order the servers it returns
+ */
+public class HealthServiceImpl extends HealthServiceGrpc.HealthServiceImplBase {
+
+    private static final ProbeResponse ACTIVE = ProbeResponse.newBuilder().setActive(true).build();
+    private static final ProbeResponse INACTIVE = ProbeResponse.newBuilder().setActive(false).build();
+
+    @Override
+    public void probe(ProbeRequest request, StreamObserver<ProbeResponse> responseObserver) {
+        responseObserver.onNext(ClassServer.isActive() ? ACTIVE : INACTIVE);
+        responseObserver.onCompleted();
+    }
+}
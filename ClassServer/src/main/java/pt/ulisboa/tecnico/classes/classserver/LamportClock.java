@@ -0,0 +1,42 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lamport clock of a class, timestamping every write on it. A timestamp
+ * holds the counter in its high bits and an id of the replica that issued
+ * it in the low bits, so timestamps from different replicas rarely tie
+ */
+public class LamportClock {
+
+    private static final int REPLICA_BITS = 20;
+
+    private final AtomicLong _counter = new AtomicLong();
+    private final long _replica;
+
+    public LamportClock(String host, Integer port) {
+        this._replica = (host + ":" + port).hashCode() & ((1L << REPLICA_BITS) - 1);
+    }
+
+    /**
+     * Gets the timestamp for a new write, after every timestamp seen so far
+     *
+     * @return
+     */
+    public long tick() {
+        return (_counter.incrementAndGet() << REPLICA_BITS) | _replica;
+    }
+
+    /**
+     * Records a timestamp issued by another replica, so the next
+     * writes issued here are ordered after it
+     *
+     * @param timestamp
+     */
+    public void observe(long timestamp) {
+        final long counter = timestamp >>> REPLICA_BITS;
+        if (counter > _counter.get()) {
+            _counter.accumulateAndGet(counter, Math::max);
+        }
+    }
+}
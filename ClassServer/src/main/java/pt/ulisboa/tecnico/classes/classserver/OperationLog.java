@@ -0,0 +1,199 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Clock;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.ClockVector;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Writes applied to a class, kept in clock order for each server that issued
+ * them, whatever order they were added in. Writes are added without locking.
+ * Gossip sends each peer only the operations it has not acknowledged yet
+ */
+public class OperationLog {
+
+    // Oldest operations are dropped past this size
+    private static final int MAX_OPERATIONS = Integer.getInteger("operationLogSize", 10000);
+
+    // Operations by the slot and clock value of the server that issued them, see key
+    private final ConcurrentSkipListMap<Long, Operation> _operations = new ConcurrentSkipListMap<>();
+
+    // Keys of the operations in the order they were added, so the oldest are dropped first
+    private final ConcurrentLinkedQueue<Long> _added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _size = new AtomicInteger();
+
+    // Highest clock value dropped from (or never added to) the log, per server slot
+    private final ConcurrentHashMap<Integer, Integer> _dropped = new ConcurrentHashMap<>();
+
+    // Last vector clock acknowledged by each peer, indexed by slot
+    private final ConcurrentHashMap<String, int[]> _acknowledged = new ConcurrentHashMap<>();
+
+    private final VectorClock _vectorClock;
+
+    // Receives every write issued by this server, as it is recorded. Concurrent
+    // writes may reach it out of clock order
+    private volatile Consumer<Operation> _journal = operation -> {};
+
+    public OperationLog(VectorClock vectorClock) {
+        this._vectorClock = vectorClock;
+    }
+
+    /**
+     * Sets where the writes issued by this server are journaled
+     *
+     * @param journal
+     */
+    public void setJournal(Consumer<Operation> journal) {
+        this._journal = journal;
+    }
+
+    /**
+     * Records a write issued by this server, tagging it with
+     * the server's clock incremented by one
+     *
+     * @param operation
+     */
+    public void record(Operation.Builder operation) {
+        final int value = _vectorClock.incrementClock();
+        final Clock clock = Clock.newBuilder().setHost(_vectorClock.getHost())
+                .setPort(_vectorClock.getPort()).setValue(value).build();
+        final Operation built = operation.setClock(clock).build();
+        add(_vectorClock.getSelf(), value, built);
+        _journal.accept(built);
+    }
+
+    /**
+     * Appends a write received from another server, so it can be relayed.
+     * Writes already dropped, or covered by a restored snapshot, are not kept
+     *
+     * @param slot of the server that issued the write
+     * @param operation
+     */
+    public void append(int slot, Operation operation) {
+        final int value = operation.getClock().getValue();
+        if (value > _dropped.getOrDefault(slot, 0)) {
+            add(slot, value, operation);
+        }
+    }
+
+    private void add(int slot, int value, Operation operation) {
+        final long key = key(slot, value);
+        if (_operations.putIfAbsent(key, operation) != null) {
+            return;
+        }
+        _added.add(key);
+
+        if (_size.incrementAndGet() > MAX_OPERATIONS) {
+            final Long oldest = _added.poll();
+            if (oldest != null) {
+                // Marked before it is removed, so since either finds it or sees it dropped
+                markMissing((int) (oldest >>> 32), (int) (long) oldest);
+                _operations.remove(oldest);
+                _size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Records that writes up to the given clocks were applied without
+     * being added to the log, so they can not be sent to other servers
+     *
+     * @param clocks indexed by slot
+     */
+    public void markMissing(int[] clocks) {
+        for (int slot = 0; slot < clocks.length; slot++) {
+            markMissing(slot, clocks[slot]);
+        }
+    }
+
+    private void markMissing(int slot, int value) {
+        if (value > 0) {
+            _dropped.merge(slot, value, Math::max);
+        }
+    }
+
+    /**
+     * Gets the operations not covered by the given vector clock, in clock order for
+     * each server. Returns null if some of them were already dropped from the log.
+     * A write still being added may be left out, which peers see as a gap and ask again
+     *
+     * @param known indexed by slot
+     * @return
+     */
+    public List<Operation> since(int[] known) {
+        final List<Operation> operations = new ArrayList<>();
+        Long next = _operations.ceilingKey(0L);
+        while (next != null) {
+            final int slot = (int) (next >>> 32);
+            final long end = key(slot + 1, 0);
+            operations.addAll(_operations.subMap(key(slot, VectorClock.value(known, slot) + 1), end).values());
+            next = _operations.ceilingKey(end);
+        }
+
+        // Checked after the operations are taken, as dropped ones are marked before they are removed
+        for (Map.Entry<Integer, Integer> dropped : _dropped.entrySet()) {
+            if (VectorClock.value(known, dropped.getKey()) < dropped.getValue()) {
+                return null;
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Gets the key of an operation, ordered by slot and then by clock value
+     *
+     * @param slot
+     * @param value
+     * @return
+     */
+    private static long key(int slot, int value) {
+        return ((long) slot << 32) | (value & 0xffffffffL);
+    }
+
+    /**
+     * Gets the vector clock last acknowledged by a peer, indexed by slot
+     *
+     * @param peer
+     * @return
+     */
+    public int[] getAcknowledged(String peer) {
+        return _acknowledged.getOrDefault(peer, new int[0]);
+    }
+
+    /**
+     * Saves the vector clock a peer replied with after a propagation
+     *
+     * @param peer
+     * @param vector
+     */
+    public void acknowledge(String peer, ClockVector vector) {
+        _acknowledged.put(peer, _vectorClock.fromMessage(vector));
+    }
+
+    public static Operation.Builder enroll(String id, String nome) {
+        return Operation.newBuilder().setType(Operation.Type.ENROLL)
+                .setStudent(Student.newBuilder().setStudentId(id).setStudentName(nome));
+    }
+
+    public static Operation.Builder cancel(String id, String nome) {
+        return Operation.newBuilder().setType(Operation.Type.CANCEL)
+                .setStudent(Student.newBuilder().setStudentId(id).setStudentName(nome));
+    }
+
+    public static Operation.Builder open(int capacity) {
+        return Operation.newBuilder().setType(Operation.Type.OPEN).setCapacity(capacity);
+    }
+
+    public static Operation.Builder close() {
+        return Operation.newBuilder().setType(Operation.Type.CLOSE);
+    }
+}
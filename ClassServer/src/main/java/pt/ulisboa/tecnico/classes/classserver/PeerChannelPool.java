@@ -0,0 +1,115 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Channels to the other servers, keyed by address ("host:port").
+ * A channel is created the first time a peer is contacted and kept
+ * across gossip rounds until the naming server stops listing the peer
+ */
+public class PeerChannelPool {
+
+    private final ConcurrentHashMap<String, ManagedChannel> _channels = new ConcurrentHashMap<>();
+
+    // Metrics
+    private final AtomicLong _created = new AtomicLong();
+    private final AtomicLong _reused = new AtomicLong();
+    private final AtomicLong _evicted = new AtomicLong();
+    private final AtomicLong _connections = new AtomicLong();
+    private final AtomicLong _setupNanos = new AtomicLong();
+
+    /**
+     * Gets the channel to a peer, creating it if there is none
+     *
+     * @param address
+     * @return
+     */
+    public ManagedChannel get(String address) {
+        final ManagedChannel channel = _channels.get(address);
+        if (channel != null) {
+            _reused.incrementAndGet();
+            return channel;
+        }
+
+        return _channels.computeIfAbsent(address, key -> {
+            final String[] hostPort = key.split(":");
+            final ManagedChannel created = ManagedChannelBuilder
+                    .forAddress(hostPort[0], Integer.parseInt(hostPort[1])).usePlaintext().build();
+            _created.incrementAndGet();
+            watch(created, created.getState(false), 0);
+            return created;
+        });
+    }
+
+    /**
+     * Shuts down and removes the channels to every peer not in the given addresses
+     *
+     * @param addresses
+     */
+    public void retain(Collection<String> addresses) {
+        for (Map.Entry<String, ManagedChannel> entry : _channels.entrySet()) {
+            if (!addresses.contains(entry.getKey()) && _channels.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().shutdown();
+                _evicted.incrementAndGet();
+                ClassServer.debug(String.format("SERVER: Closed channel to %s", entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Shuts down every channel
+     */
+    public void shutdown() {
+        for (ManagedChannel channel : _channels.values()) {
+            channel.shutdown();
+        }
+        _channels.clear();
+    }
+
+    /**
+     * Times every connection attempt of a channel, from CONNECTING until READY
+     *
+     * @param channel
+     * @param last state seen
+     * @param connecting time the current attempt started
+     */
+    private void watch(ManagedChannel channel, ConnectivityState last, long connecting) {
+        channel.notifyWhenStateChanged(last, () -> {
+            final ConnectivityState state = channel.getState(false);
+            long start = connecting;
+
+            if (state == ConnectivityState.CONNECTING && last != ConnectivityState.CONNECTING) {
+                start = System.nanoTime();
+            } else if (state == ConnectivityState.READY && last == ConnectivityState.CONNECTING) {
+                _connections.incrementAndGet();
+                _setupNanos.addAndGet(System.nanoTime() - connecting);
+            }
+
+            if (state != ConnectivityState.SHUTDOWN) {
+                watch(channel, state, start);
+            }
+        });
+    }
+
+    /**
+     * Describes the channel reuse and connection setup metrics
+     *
+     * @return
+     */
+    public String getMetrics() {
+        final long connections = _connections.get();
+        final double setupMillis = (connections == 0) ? 0 :
+                (double) TimeUnit.NANOSECONDS.toMicros(_setupNanos.get()) / connections / 1000;
+
+        return String.format("channels open=%d created=%d reused=%d evicted=%d, connections=%d avg setup=%.2fms",
+                _channels.size(), _created.get(), _reused.get(), _evicted.get(), connections, setupMillis);
+    }
+}
@@ -0,0 +1,128 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the classes of a server on disk: a snapshot of every class plus
+ * a write-ahead log of the writes issued since. A restarted server loads
+ * the snapshot and replays the log, and gossip brings whatever it missed
+ */
+public class Persistence implements Closeable {
+
+    // Time between snapshots, in milliseconds
+    private static final long SNAPSHOT_INTERVAL = Long.getLong("snapshotInterval", 60000);
+
+    private static final String SNAPSHOT = "snapshot.bin";
+
+    private final Path _directory;
+    private final WriteAheadLog _wal;
+
+    private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Persistence(Path directory) throws IOException {
+        this._directory = Files.createDirectories(directory);
+        this._wal = new WriteAheadLog(directory);
+    }
+
+    public Path getDirectory() {
+        return _directory;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return _wal;
+    }
+
+    /**
+     * Loads the last snapshot and replays the log written after it
+     *
+     * @param classes
+     * @throws IOException
+     */
+    public void recover(ClassRegistry classes) throws IOException {
+        final long start = System.nanoTime();
+        int count = 0;
+
+        final Path snapshot = _directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            count = SnapshotFile.read(snapshot, classes);
+        }
+
+        final int[] replayed = new int[1];
+        _wal.replay((classId, operation) -> {
+            final Class turma = classes.getOrCreate(classId);
+            synchronized (turma) {
+                turma.replay(operation);
+            }
+            replayed[0]++;
+        });
+
+        ClassServer.debug(String.format("SERVER: Recovered %d classes and %d writes from %s in %dms",
+                count, replayed[0], _directory, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Takes a snapshot periodically
+     *
+     * @param classes
+     */
+    public void start(ClassRegistry classes) {
+        _executor.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(classes);
+            } catch (IOException e) {
+                System.err.printf("ERROR: Could not write snapshot: %s\n", e.getMessage());
+            }
+        }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a snapshot of every class and drops the log segments it covers.
+     * The segment that was being written when the snapshot started is kept,
+     * since its last writes may not have been applied when the classes were read
+     *
+     * @param classes
+     * @throws IOException
+     */
+    public synchronized void snapshot(ClassRegistry classes) throws IOException {
+        final long start = System.nanoTime();
+        final long segment = _wal.rotate();
+
+        SnapshotFile.write(_directory.resolve(SNAPSHOT), classes.getClasses());
+
+        _wal.truncate(segment - 1);
+
+        ClassServer.debug(String.format("SERVER: Snapshot of %d classes written in %dms",
+                classes.getClasses().size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Takes a last snapshot and closes the log
+     *
+     * @param classes
+     */
+    public void close(ClassRegistry classes) {
+        _executor.shutdownNow();
+        try {
+            snapshot(classes);
+        } catch (IOException e) {
+            System.err.printf("ERROR: Could not write snapshot: %s\n", e.getMessage());
+        }
+        close();
+    }
+
+    @Override
+    public void close() {
+        _executor.shutdownNow();
+        _wal.close();
+    }
+}
@@ -3,6 +3,7 @@ package pt.ulisboa.tecnico.classes.classserver;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.*;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorServiceGrpc.ProfessorServiceImplBase;
 
 import java.util.regex.Pattern;
@@ -10,13 +11,10 @@ import java.util.regex.Pattern;
 import static io.grpc.Status.INVALID_ARGUMENT;
 
 public class ProfessorServiceImpl extends ProfessorServiceImplBase {
-    final private Class _class;
+    final private ClassRegistry _classes;
 
-    private final VectorClock _vectorClock;
-
-    public ProfessorServiceImpl(Class _class, VectorClock vectorClock) {
-        this._class = _class;
-        this._vectorClock = vectorClock;
+    public ProfessorServiceImpl(ClassRegistry classes) {
+        this._classes = classes;
     }
 
     @Override
@@ -37,22 +35,36 @@ public class ProfessorServiceImpl extends ProfessorServiceImplBase {
 
         if (!ClassServer.isActive()) {
             response.setCode(ResponseCode.INACTIVE_SERVER);
+        } else if (!ClassServer.acceptsWrites()) {
+            // Applied on the primary instead, sparing the client a retry there
+            ClassServer.forwardWrite(channel -> ProfessorServiceGrpc.newFutureStub(channel).openEnrollments(request),
+                    responseObserver, response.setCode(ResponseCode.WRITING_NOT_SUPPORTED).build());
+            return;
+        } else if (!_classes.contains(request.getClassId()) && capacity == 0) {
+            // A class not hosted here has no students, so it is only full for no capacity.
+            // Rejected before the class is created, as only an open that succeeds creates it
+            response.setCode(ResponseCode.FULL_CLASS);
         } else {
-            synchronized (_class) {
+            final Class turma = _classes.getOrCreate(request.getClassId());
+            synchronized (turma) {
                 // If class is already open, notify client and don't change its capacity
-                if (_class.getOpenEnrollments()) {
+                if (turma.getOpenEnrollments()) {
                     response.setCode(ResponseCode.ENROLLMENTS_ALREADY_OPENED).build();
-                } else if (_class.getClassSize() >= request.getCapacity()) {
+                } else if (turma.getClassSize() >= request.getCapacity()) {
                     response.setCode(ResponseCode.FULL_CLASS).build();
                 } else {
-                    _class.openEnrollments(capacity);
-                    // Increment vector clock
-                    _vectorClock.incrementClock();
+                    // Log the write, incrementing the vector clock
+                    turma.open(capacity);
 
                     response.setCode(ResponseCode.OK).build();
                 }
             }
+            // The client's next reads wait for this write
+            response.setToken(turma.getVectorClock().toToken());
+        }
 
+        if (response.getCode() == ResponseCode.OK) {
+            ClassServer.commit();
         }
 
         // Send Response
@@ -69,20 +81,33 @@ public class ProfessorServiceImpl extends ProfessorServiceImplBase {
 
         if (!ClassServer.isActive()) {
             response.setCode(ResponseCode.INACTIVE_SERVER);
+        } else if (!ClassServer.acceptsWrites()) {
+            // Applied on the primary instead, sparing the client a retry there
+            ClassServer.forwardWrite(channel -> ProfessorServiceGrpc.newFutureStub(channel).closeEnrollments(request),
+                    responseObserver, response.setCode(ResponseCode.WRITING_NOT_SUPPORTED).build());
+            return;
+        } else if (!_classes.contains(request.getClassId())) {
+            // Never opened here, so there is nothing to close
+            response.setCode(ResponseCode.ENROLLMENTS_ALREADY_CLOSED);
         } else {
-            synchronized (_class) {
+            final Class turma = _classes.get(request.getClassId());
+            synchronized (turma) {
                 // If class is already closed, notify client
-                if (!_class.getOpenEnrollments()) {
+                if (!turma.getOpenEnrollments()) {
                     response.setCode(ResponseCode.ENROLLMENTS_ALREADY_CLOSED).build();
                 } else {
-                    _class.closeEnrollments();
-                    // Increment vector clock
-                    _vectorClock.incrementClock();
+                    // Log the write, incrementing the vector clock
+                    turma.close();
 
                     response.setCode(ResponseCode.OK).build();
                 }
             }
+            // The client's next reads wait for this write
+            response.setToken(turma.getVectorClock().toToken());
+        }
 
+        if (response.getCode() == ResponseCode.OK) {
+            ClassServer.commit();
         }
 
         // Send response
@@ -94,18 +119,17 @@ public class ProfessorServiceImpl extends ProfessorServiceImplBase {
     public void listClass(ListClassRequest request, StreamObserver<ListClassResponse> responseObserver) {
         ClassServer.debug("PROFESSOR: List Request");
 
-        final ListClassResponse.Builder response = ListClassResponse.newBuilder();
-
-        if (!ClassServer.isActive()) {
-            response.setCode(ResponseCode.INACTIVE_SERVER);
-        } else {
-            response.setCode(ResponseCode.OK).setClassState(_class.createClassState());
-        }
-
-        // Send response
-        responseObserver.onNext(response.build());
-        responseObserver.onCompleted();
+        final Class turma = _classes.get(request.getClassId());
+        ClassServer.canServe(turma, request.getToken(), request.getMaxStaleness(), code -> {
+            final ListClassResponse.Builder response = ListClassResponse.newBuilder().setCode(code);
+            if (code == ResponseCode.OK) {
+                response.setClassState(turma.createClassState());
+            }
 
+            // Send response
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        });
     }
 
     @Override
@@ -126,18 +150,30 @@ public class ProfessorServiceImpl extends ProfessorServiceImplBase {
 
         if (!ClassServer.isActive()) {
             response.setCode(ResponseCode.INACTIVE_SERVER);
+        } else if (!ClassServer.acceptsWrites()) {
+            // Applied on the primary instead, sparing the client a retry there
+            ClassServer.forwardWrite(channel -> ProfessorServiceGrpc.newFutureStub(channel).cancelEnrollment(request),
+                    responseObserver, response.setCode(ResponseCode.WRITING_NOT_SUPPORTED).build());
+            return;
+        } else if (!_classes.contains(request.getClassId())) {
+            // Never opened here, so no student is enrolled in it
+            response.setCode(ResponseCode.NON_EXISTING_STUDENT);
         } else {
-            synchronized (_class) {
-                if (!_class.isEnrolled(student_id)) {
+            final Class turma = _classes.get(request.getClassId());
+            synchronized (turma) {
+                // Log the write, incrementing the vector clock
+                if (!turma.cancel(student_id)) {
                     response.setCode(ResponseCode.NON_EXISTING_STUDENT);
                 } else {
-                    _class.cancelEnrollment(student_id);
-                    // Increment vector clock
-                    _vectorClock.incrementClock();
-
                     response.setCode(ResponseCode.OK);
                 }
             }
+            // The client's next reads wait for this write
+            response.setToken(turma.getVectorClock().toToken());
+        }
+
+        if (response.getCode() == ResponseCode.OK) {
+            ClassServer.commit();
         }
 
         // Send response
@@ -0,0 +1,53 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Assigns each replica ("host:port") a slot in the vector clocks of this server.
+ * Slots are never reused, so an index can be shared by every class
+ */
+public class ReplicaIndex {
+
+    private final ConcurrentHashMap<String, Integer> _slots = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<String> _replicas = new CopyOnWriteArrayList<>();
+
+    /**
+     * Gets the slot of a replica, assigning the next free one if it is new
+     *
+     * @param replica
+     * @return
+     */
+    public int slot(String replica) {
+        final Integer slot = _slots.get(replica);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (this) {
+            return _slots.computeIfAbsent(replica, key -> {
+                _replicas.add(key);
+                return _replicas.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Gets the slot of a replica, or -1 if it has none
+     *
+     * @param replica
+     * @return
+     */
+    public int find(String replica) {
+        return _slots.getOrDefault(replica, -1);
+    }
+
+    /**
+     * Gets the replica in a slot
+     *
+     * @param slot
+     * @return
+     */
+    public String replica(int slot) {
+        return _replicas.get(slot);
+    }
+}
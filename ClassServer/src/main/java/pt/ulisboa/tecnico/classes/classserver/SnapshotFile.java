@@ -0,0 +1,132 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.ClockVector;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the classes of a server, read through a memory mapping.
+ * Only the small per-class header is read when the snapshot is loaded; each
+ * roster stays in the mapped file until its class first needs it.
+ * <p>
+ * Layout, big-endian: magic, format version and class count, then for every class
+ * the class id, capacity, open enrollments flag, vector clock (ClockVector) and
+ * replica state (ClassState, with timestamps), variable-length fields prefixed by their length
+ */
+public class SnapshotFile {
+
+    // "TRMS"
+    private static final int MAGIC = 0x54524d53;
+    private static final int VERSION = 1;
+
+    /**
+     * Writes a snapshot of the given classes. The file is replaced
+     * atomically, only after the new snapshot is on disk
+     *
+     * @param path
+     * @param classes
+     * @throws IOException
+     */
+    public static void write(Path path, Map<String, Class> classes) throws IOException {
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        final Map<String, Class> snapshot = Map.copyOf(classes);
+
+        final FileOutputStream file = new FileOutputStream(temporary.toFile());
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(snapshot.size());
+
+            for (Map.Entry<String, Class> entry : snapshot.entrySet()) {
+                final Class turma = entry.getValue();
+
+                // Taken before the state, so it never claims writes the state does not have
+                final ClockVector vector = turma.getVectorClock().toMessage();
+                final ClassState classState = turma.createReplicaState();
+
+                final byte[] classId = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                output.writeInt(classId.length);
+                output.write(classId);
+                output.writeInt(classState.getCapacity());
+                output.writeBoolean(classState.getOpenEnrollments());
+                output.writeInt(vector.getSerializedSize());
+                vector.writeTo(output);
+                output.writeInt(classState.getSerializedSize());
+                classState.writeTo(output);
+            }
+            output.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a snapshot and sets every class in it, creating the ones missing.
+     * The writes in the snapshot are not in the operation log, so they are
+     * marked missing and peers that lack them get the full state
+     *
+     * @param path
+     * @param classes
+     * @return the number of classes read
+     * @throws IOException
+     */
+    public static int read(Path path, ClassRegistry classes) throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.remaining() < 3 * Integer.BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a class snapshot: " + path);
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported class snapshot version: " + path);
+        }
+
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            final String classId = StandardCharsets.UTF_8.decode(slice(buffer)).toString();
+            final int capacity = buffer.getInt();
+            final boolean openEnrollments = buffer.get() != 0;
+            final ClockVector vector = ClockVector.parseFrom(slice(buffer));
+            final ByteBuffer state = slice(buffer);
+
+            final Class turma = classes.getOrCreate(classId);
+            turma.setFromStored(capacity, openEnrollments, state);
+
+            final VectorClock vectorClock = turma.getVectorClock();
+            final int[] values = vectorClock.fromMessage(vector);
+            vectorClock.merge(values);
+            turma.getOperationLog().markMissing(values);
+        }
+        return count;
+    }
+
+    /**
+     * Gets the next length-prefixed field, without copying it
+     *
+     * @param buffer
+     * @return
+     */
+    private static ByteBuffer slice(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final ByteBuffer field = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return field;
+    }
+}
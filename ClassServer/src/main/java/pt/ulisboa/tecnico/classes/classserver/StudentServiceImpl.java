@@ -14,13 +14,12 @@ import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc;
 
 public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBase {
 
-    final private Class _class;
+    private static final Pattern STUDENT_ID = Pattern.compile("aluno\\d{4}");
 
-    private final VectorClock _vectorClock;
+    final private ClassRegistry _classes;
 
-    public StudentServiceImpl(Class _class, VectorClock vectorClock) {
-        this._class = _class;
-        this._vectorClock = vectorClock;
+    public StudentServiceImpl(ClassRegistry classes) {
+        this._classes = classes;
     }
 
     @Override
@@ -30,7 +29,7 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
         final String student_id = request.getStudent().getStudentId();
         final String student_name = request.getStudent().getStudentName();
 
-        if (!Pattern.compile("aluno\\d{4}").matcher(student_id).matches()) {
+        if (!STUDENT_ID.matcher(student_id).matches()) {
             responseObserver
                     .onError(INVALID_ARGUMENT.withDescription("Invalid student ID").asRuntimeException());
             ClassServer.debug("STUDENT: Last Enroll Request failed, invalid student ID");
@@ -47,24 +46,26 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
         final EnrollResponse.Builder response = EnrollResponse.newBuilder();
         if (!ClassServer.isActive()) {
             response.setCode(ResponseCode.INACTIVE_SERVER);
+        } else if (!ClassServer.acceptsWrites()) {
+            // Enrolled on the primary instead, sparing the client a retry there
+            ClassServer.forwardWrite(channel -> StudentServiceGrpc.newFutureStub(channel).enroll(request),
+                    responseObserver, response.setCode(ResponseCode.WRITING_NOT_SUPPORTED).build());
+            return;
+        } else if (!_classes.contains(request.getClassId())) {
+            // Never opened here, so there is nothing to enroll in
+            response.setCode(ResponseCode.ENROLLMENTS_ALREADY_CLOSED);
         } else {
-            synchronized (_class) {
-                if (!_class.getOpenEnrollments()) {
-                    response.setCode(ResponseCode.ENROLLMENTS_ALREADY_CLOSED);
-                } else if (_class.isEnrolled(request.getStudent().getStudentId())) {
-                    response.setCode(ResponseCode.STUDENT_ALREADY_ENROLLED);
-                } else if (_class.isFull()) {
-                    response.setCode(ResponseCode.FULL_CLASS);
-                } else {
-                    // Register student with given parameters
-                    _class.enroll(student_id, student_name);
-
-                    // Increment vector clock
-                    _vectorClock.incrementClock();
-
-                    response.setCode(ResponseCode.OK);
-                }
-            }
+            final Class turma = _classes.get(request.getClassId());
+            // Register student with given parameters, without taking the class lock.
+            // Successful enrollments are logged, incrementing the vector clock
+            response.setCode(turma.tryEnroll(student_id, student_name));
+
+            // The client's next reads wait for this write
+            response.setToken(turma.getVectorClock().toToken());
+        }
+
+        if (response.getCode() == ResponseCode.OK) {
+            ClassServer.commit();
         }
 
         // Send response
@@ -76,16 +77,16 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
     public void listClass(ListClassRequest request, StreamObserver<ListClassResponse> responseObserver) {
         ClassServer.debug("STUDENT: List Request");
 
-        final ListClassResponse.Builder response = ListClassResponse.newBuilder();
-
-        if (!ClassServer.isActive()) {
-            response.setCode(ResponseCode.INACTIVE_SERVER);
-        } else {
-            response.setCode(ResponseCode.OK).setClassState(_class.createClassState());
-        }
+        final Class turma = _classes.get(request.getClassId());
+        ClassServer.canServe(turma, request.getToken(), request.getMaxStaleness(), code -> {
+            final ListClassResponse.Builder response = ListClassResponse.newBuilder().setCode(code);
+            if (code == ResponseCode.OK) {
+                response.setClassState(turma.createClassState());
+            }
 
-        // Send response
-        responseObserver.onNext(response.build());
-        responseObserver.onCompleted();
+            // Send response
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        });
     }
 }
\ No newline at end of file
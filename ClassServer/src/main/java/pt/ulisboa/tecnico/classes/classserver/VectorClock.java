@@ -1,42 +1,338 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
-import java.util.concurrent.ConcurrentHashMap;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.SessionToken;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Clock;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.ClockVector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class VectorClock {
 
-    private final ConcurrentHashMap<String, Integer> _clocks = new ConcurrentHashMap<>();
+    // Maps each replica to its position in the values array
+    private final ReplicaIndex _index;
+
+    // Copy-on-write, so readers always see a consistent vector without locking.
+    // Changes wake the reads waiting for a client's writes. The slot of this
+    // server is not kept here but in _own
+    private volatile int[] _values;
+
+    // Reads waiting for a client's writes, without a thread blocked on each
+    private final List<Waiter> _waiters = new ArrayList<>();
+
+    // This server's own clock, the only one local writes change, incremented without locking
+    private final AtomicInteger _own = new AtomicInteger();
 
-    private final String _server;
+    private final int _self;
+    private final String _host;
+    private final Integer _port;
 
     public VectorClock(String host, Integer port) {
-        this._server = host + ":" + port;
-        updateClock(host, port, 0);
+        this(new ReplicaIndex(), host, port);
     }
 
-    public synchronized void updateClock(String host, Integer port, Integer clock) {
-        String server = host + ":" + port;
-        this._clocks.put(server, clock);
+    public VectorClock(ReplicaIndex index, String host, Integer port) {
+        this._index = index;
+        this._host = host;
+        this._port = port;
+        this._self = index.slot(host + ":" + port);
+        this._values = new int[_self + 1];
     }
 
-    public synchronized void updateClock(String server, Integer clock) {
-        this._clocks.put(server, clock);
+    public String getHost() {
+        return _host;
+    }
+
+    public Integer getPort() {
+        return _port;
+    }
+
+    public ReplicaIndex getIndex() {
+        return _index;
+    }
+
+    /**
+     * Gets the slot of this server's own clock
+     *
+     * @return
+     */
+    public int getSelf() {
+        return _self;
+    }
+
+    /**
+     * Gets a copy of every clock, indexed by slot
+     *
+     * @return
+     */
+    public int[] getValues() {
+        final int[] values = _values.clone();
+        values[_self] = _own.get();
+        return values;
     }
 
     public Integer getClock(String host, Integer port) {
-        String server = host + ":" + port;
-        if (!_clocks.containsKey(server)) {
-            return 0;
+        return getClock(host + ":" + port);
+    }
+
+    public int getClock(String server) {
+        return get(_values, _index.find(server));
+    }
+
+    public int getClock(int slot) {
+        return get(_values, slot);
+    }
+
+    /**
+     * Keeps the highest of the saved and the given clock for a server
+     *
+     * @param slot
+     * @param clock
+     */
+    public void mergeClock(int slot, int clock) {
+        synchronized (this) {
+            if (slot == _self) {
+                _own.accumulateAndGet(clock, Math::max);
+            } else if (clock > value(_values, slot)) {
+                final int[] values = Arrays.copyOf(_values, Math.max(_values.length, slot + 1));
+                values[slot] = clock;
+                _values = values;
+            } else {
+                return;
+            }
+        }
+        wake();
+    }
+
+    /**
+     * Keeps the highest of the saved and the given clocks for every server
+     *
+     * @param clocks indexed by slot
+     */
+    public void merge(int[] clocks) {
+        synchronized (this) {
+            final int[] values = Arrays.copyOf(_values, Math.max(_values.length, clocks.length));
+            for (int slot = 0; slot < clocks.length; slot++) {
+                values[slot] = Math.max(values[slot], clocks[slot]);
+            }
+            if (_self < clocks.length) {
+                _own.accumulateAndGet(clocks[_self], Math::max);
+            }
+            _values = values;
+        }
+        wake();
+    }
+
+    /**
+     * Increments this server's own clock, without locking. Waiting reads are
+     * not woken: a client only gets the token of a write made here after
+     * the increment, so no read waits for this server's own clock
+     *
+     * @return the new value of the clock
+     */
+    public int incrementClock() {
+        return _own.incrementAndGet();
+    }
+
+    /**
+     * Returns true if this clock has seen every write the given vector has
+     *
+     * @param vector
+     * @return
+     */
+    public boolean dominates(ClockVector vector) {
+        final int[] values = _values;
+        for (int i = 0; i < vector.getValuesCount(); i++) {
+            if (vector.getValues(i) > get(values, _index.find(vector.getReplicas(i)))) {
+                return false;
+            }
         }
-        return this._clocks.get(server);
+        return true;
     }
 
-    public synchronized void incrementClock() {
-        updateClock(_server, this._clocks.get(_server) + 1);
+    /**
+     * Returns true if this clock has seen every write of a client's session
+     *
+     * @param token
+     * @return
+     */
+    public boolean dominates(SessionToken token) {
+        final int[] values = _values;
+        for (int i = 0; i < token.getValuesCount(); i++) {
+            if (token.getValues(i) > get(values, _index.find(token.getReplicas(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls back once this clock has seen every write of a client's session,
+     * without holding a thread while it waits. The callback runs on the thread
+     * that merged the missing writes, or on the timer once the timeout passed
+     *
+     * @param token
+     * @param timeout in milliseconds
+     * @param timer
+     * @param callback given false if the timeout passed first
+     */
+    public void whenDominates(SessionToken token, long timeout, ScheduledExecutorService timer,
+                              Consumer<Boolean> callback) {
+        final Waiter waiter = new Waiter(token, callback);
+        final boolean waiting;
+        synchronized (this) {
+            waiting = !dominates(token) && timeout > 0;
+            if (waiting) {
+                _waiters.add(waiter);
+            }
+        }
+        if (!waiting) {
+            // Already has them, or gets no time to
+            waiter.complete(dominates(token));
+            return;
+        }
+        timer.schedule(() -> {
+            synchronized (this) {
+                _waiters.remove(waiter);
+            }
+            waiter.complete(false);
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Calls back the reads whose client's writes this clock has now seen
+     */
+    private void wake() {
+        final List<Waiter> ready = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<Waiter> waiters = _waiters.iterator();
+            while (waiters.hasNext()) {
+                final Waiter waiter = waiters.next();
+                if (dominates(waiter._token)) {
+                    waiters.remove();
+                    ready.add(waiter);
+                }
+            }
+        }
+        // Outside the lock, as callbacks answer the reads
+        ready.forEach(waiter -> waiter.complete(true));
+    }
+
+    /**
+     * A read waiting for a client's writes, called back once
+     */
+    private static class Waiter {
+        private final SessionToken _token;
+        private final Consumer<Boolean> _callback;
+        private final AtomicBoolean _done = new AtomicBoolean();
+
+        private Waiter(SessionToken token, Consumer<Boolean> callback) {
+            this._token = token;
+            this._callback = callback;
+        }
+
+        private void complete(boolean dominates) {
+            if (_done.compareAndSet(false, true)) {
+                try {
+                    _callback.accept(dominates);
+                } catch (RuntimeException e) {
+                    // The read is answered from a merge or the timer, which must go on
+                    ClassServer.debug("SERVER: Failed to answer a waiting read: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the session token returned to a client after a write, with
+     * the same entries as the message for this vector clock
+     *
+     * @return
+     */
+    public SessionToken toToken() {
+        final int[] values = _values;
+        final SessionToken.Builder token = SessionToken.newBuilder();
+        for (int slot = 0; slot < values.length; slot++) {
+            final int value = get(values, slot);
+            if (value != 0) {
+                token.addReplicas(_index.replica(slot)).addValues(value);
+            }
+        }
+        return token.build();
+    }
+
+    /**
+     * Builds the message for this vector clock, leaving out servers at zero
+     *
+     * @return
+     */
+    public ClockVector toMessage() {
+        final int[] values = _values;
+        final ClockVector.Builder vector = ClockVector.newBuilder();
+        for (int slot = 0; slot < values.length; slot++) {
+            final int value = get(values, slot);
+            if (value != 0) {
+                vector.addReplicas(_index.replica(slot)).addValues(value);
+            }
+        }
+        return vector.build();
     }
 
+    /**
+     * Converts a received vector to clocks indexed by this server's slots
+     *
+     * @param vector
+     * @return
+     */
+    public int[] fromMessage(ClockVector vector) {
+        int[] values = new int[0];
+        for (int i = 0; i < vector.getValuesCount(); i++) {
+            final int slot = _index.slot(vector.getReplicas(i));
+            if (slot >= values.length) {
+                values = Arrays.copyOf(values, slot + 1);
+            }
+            values[slot] = vector.getValues(i);
+        }
+        return values;
+    }
+
+    /**
+     * Gets the value in a slot of this clock's values, with this server's own clock in its slot
+     *
+     * @param values
+     * @param slot
+     * @return
+     */
+    private int get(int[] values, int slot) {
+        return (slot == _self) ? _own.get() : value(values, slot);
+    }
+
+    /**
+     * Gets the value in a slot of a vector, zero if the vector does not have it
+     *
+     * @param values
+     * @param slot
+     * @return
+     */
+    public static int value(int[] values, int slot) {
+        return (slot >= 0 && slot < values.length) ? values[slot] : 0;
+    }
 
-    public boolean contains(String server) {
-        return this._clocks.containsKey(server);
+    /**
+     * Gets the key used for a Clock message's server
+     *
+     * @param clock
+     * @return
+     */
+    public static String server(Clock clock) {
+        return clock.getHost() + ":" + clock.getPort();
     }
 
 }
@@ -0,0 +1,274 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.Operation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of the writes issued by this server, split in segments
+ * ("wal-N.log") that are started every time a snapshot is taken.
+ * Records are written by a single thread in groups: every record appended
+ * while a group is being written and synced goes out with the next one
+ */
+public class WriteAheadLog implements Closeable {
+
+    // How long the writer waits for more records before writing a group, in milliseconds
+    private static final long SYNC_DELAY = Long.getLong("walSyncDelay", 0);
+
+    // Without fsync, a write is only as durable as the operating system's cache
+    private static final boolean FSYNC = !"false".equals(System.getProperty("walFsync"));
+
+    private static final String SEGMENT_FMT = "wal-%010d.log";
+
+    private final Path _directory;
+    private FileChannel _channel;
+    private long _segment;
+
+    // Encoded records waiting for the writer
+    private List<ByteBuffer> _pending = new ArrayList<>();
+
+    // Number of records appended, and of those already written (and synced)
+    private long _appended = 0;
+    private long _durable = 0;
+
+    private boolean _rotate = false;
+    private boolean _closed = false;
+    private IOException _failure;
+
+    private final Thread _writer;
+
+    /**
+     * Opens a new segment after the existing ones, which are left for recovery
+     *
+     * @param directory
+     * @throws IOException
+     */
+    public WriteAheadLog(Path directory) throws IOException {
+        this._directory = directory;
+        final List<Path> segments = segments();
+        this._segment = segments.isEmpty() ? 0 : segment(segments.get(segments.size() - 1)) + 1;
+        this._channel = open(_segment);
+
+        this._writer = new Thread(this::write, "wal-writer");
+        this._writer.setDaemon(true);
+        this._writer.start();
+    }
+
+    /**
+     * Appends a write to the log, without waiting for it to be written
+     *
+     * @param classId
+     * @param operation
+     */
+    public void append(String classId, Operation operation) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(0);
+            output.writeUTF(classId);
+            operation.writeTo(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Length prefix
+        final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.remaining() - Integer.BYTES);
+
+        synchronized (this) {
+            _pending.add(record);
+            _appended++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every write appended so far is written to disk
+     */
+    public synchronized void sync() {
+        final long target = _appended;
+        boolean interrupted = false;
+        while (_durable < target && _failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (_durable < target) {
+            throw new UncheckedIOException("Could not write to the write-ahead log", _failure);
+        }
+    }
+
+    /**
+     * Writes the records appended so far and starts a new segment
+     *
+     * @return the number of the new segment
+     */
+    public synchronized long rotate() {
+        _rotate = true;
+        notifyAll();
+        while (_rotate && _failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return _segment;
+    }
+
+    /**
+     * Deletes the segments before the given one
+     *
+     * @param segment
+     * @throws IOException
+     */
+    public void truncate(long segment) throws IOException {
+        for (Path path : segments()) {
+            if (segment(path) < segment) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Reads every record in the segments before the current one, in order.
+     * A record cut short by a crash ends its segment
+     *
+     * @param consumer receives each class id and operation
+     * @throws IOException
+     */
+    public void replay(BiConsumer<String, Operation> consumer) throws IOException {
+        for (Path path : segments()) {
+            if (segment(path) >= _segment) {
+                continue;
+            }
+            try (DataInputStream input = new DataInputStream(Files.newInputStream(path))) {
+                while (true) {
+                    final byte[] record;
+                    try {
+                        record = new byte[input.readInt()];
+                        input.readFully(record);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    final DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record));
+                    final String classId = recordInput.readUTF();
+                    consumer.accept(classId, Operation.parseFrom(recordInput));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records and stops the writer
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+            notifyAll();
+        }
+        try {
+            _writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                final List<ByteBuffer> group;
+                final long appended;
+                final boolean rotate;
+                synchronized (this) {
+                    while (_pending.isEmpty() && !_rotate && !_closed) {
+                        wait();
+                    }
+                    // Let more writes join this group
+                    final long deadline = System.currentTimeMillis() + SYNC_DELAY;
+                    long remaining = SYNC_DELAY;
+                    while (remaining > 0 && !_rotate && !_closed) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    group = _pending;
+                    _pending = new ArrayList<>();
+                    appended = _appended;
+                    rotate = _rotate;
+                }
+
+                final ByteBuffer[] buffers = group.toArray(new ByteBuffer[0]);
+                while (buffers.length > 0 && buffers[buffers.length - 1].hasRemaining()) {
+                    _channel.write(buffers);
+                }
+                if (FSYNC && buffers.length > 0) {
+                    _channel.force(false);
+                }
+                if (rotate) {
+                    _channel.close();
+                    _channel = open(_segment + 1);
+                }
+
+                synchronized (this) {
+                    _durable = appended;
+                    if (rotate) {
+                        _segment++;
+                        _rotate = false;
+                    }
+                    notifyAll();
+                    if (_closed && _pending.isEmpty()) {
+                        _channel.close();
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                _failure = e;
+                notifyAll();
+            }
+            System.err.printf("ERROR: Write-ahead log failed: %s\n", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        return FileChannel.open(_directory.resolve(String.format(SEGMENT_FMT, segment)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(_directory)) {
+            return files.filter(path -> path.getFileName().toString().matches("wal-\\d+\\.log"))
+                    .sorted().toList();
+        }
+    }
+
+    private static long segment(Path path) {
+        final String name = path.getFileName().toString();
+        return Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length()));
+    }
+}
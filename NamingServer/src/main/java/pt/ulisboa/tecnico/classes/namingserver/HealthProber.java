@@ -0,0 +1,110 @@
+package pt.ulisboa.tecnico.classes.namingserver;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.ProbeRequest;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.ProbeResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.HealthServiceGrpc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes every registered server in rounds, recording whether it is active and
+ * how long it takes to reply, then reorders the servers of every service by health
+ */
+public class HealthProber implements Runnable {
+
+    // Time each server has to reply to a probe, in milliseconds
+    private static final long PROBE_DEADLINE = Long.getLong("probeDeadline", 500);
+
+    private final NamingServices _namingServices;
+
+    // Channels to the registered servers, kept across rounds. Only used by the thread running the rounds
+    private final Map<String, ManagedChannel> _channels = new HashMap<>();
+
+    public HealthProber(NamingServices namingServices) {
+        this._namingServices = namingServices;
+    }
+
+    /**
+     * Runs a round, waiting for every probe to get a reply or reach its deadline
+     */
+    @Override
+    public void run() {
+        try {
+            round();
+        } catch (RuntimeException e) {
+            // The next rounds must still run
+            NamingServer.debug("Probe round failed: " + e.getMessage());
+        }
+    }
+
+    private void round() {
+        final List<ListenableFuture<ProbeResponse>> probes = new ArrayList<>();
+        final Set<String> addresses = new HashSet<>();
+        for (ServiceEntry serviceEntry : _namingServices.getServiceEntries()) {
+            for (ServerEntry server : serviceEntry.getServerEntries()) {
+                if (addresses.add(server.getAddress())) {
+                    probes.add(probe(server));
+                }
+            }
+        }
+
+        try {
+            Futures.successfulAsList(probes).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            // Failed probes were recorded as such
+        }
+
+        for (ServiceEntry serviceEntry : _namingServices.getServiceEntries()) {
+            serviceEntry.rescore();
+        }
+
+        // Channels to servers that are no longer registered
+        _channels.entrySet().removeIf(entry -> {
+            if (addresses.contains(entry.getKey())) {
+                return false;
+            }
+            entry.getValue().shutdownNow();
+            return true;
+        });
+    }
+
+    private ListenableFuture<ProbeResponse> probe(ServerEntry server) {
+        final ManagedChannel channel = _channels.computeIfAbsent(server.getAddress(),
+                address -> ManagedChannelBuilder.forAddress(server.getHost(), server.getPort()).usePlaintext().build());
+
+        final long start = System.nanoTime();
+        final ListenableFuture<ProbeResponse> probe = HealthServiceGrpc.newFutureStub(channel)
+                .withDeadlineAfter(PROBE_DEADLINE, TimeUnit.MILLISECONDS).probe(ProbeRequest.getDefaultInstance());
+        Futures.addCallback(probe, new FutureCallback<>() {
+            @Override
+            public void onSuccess(ProbeResponse response) {
+                server.probed(response.getActive(), (System.nanoTime() - start) / 1000);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (server.unreachable()) {
+                    NamingServer.debug(String.format("Server with address %s stopped replying to probes",
+                            server.getAddress()));
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return probe;
+    }
+}
@@ -0,0 +1,473 @@
+package pt.ulisboa.tecnico.classes.namingserver;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingReplicaServiceGrpc;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryEntry;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryOperation;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.ReplicateResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.StatusRequest;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.StatusResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc.NamingServerServiceBlockingStub;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group of naming servers sharing the registry. The first member, in the order
+ * the group is given in, that is up leads it, as long as it reaches a majority
+ * of the group: it numbers every change by its leadership (the epoch) and
+ * position in it, logs it and sends it to every other member, to each one in
+ * order, and only acknowledges it once a majority of the members applied it.
+ * The other members serve lookups and watches from their own copy of the
+ * registry and forward changes to the leader. A member that missed changes is
+ * sent the whole registry instead
+ */
+public class NamingGroup {
+
+    // Interval between status requests to the other members, in milliseconds.
+    // A member that does not reply to PINGS_MISSED requests in a row is considered down
+    private static final long PING_INTERVAL = Long.getLong("namingPingInterval", 500);
+    private static final int PINGS_MISSED = 3;
+
+    // Time a member has to apply a change sent to it, in milliseconds
+    private static final long REPLICATION_DEADLINE = Long.getLong("replicationDeadline", 2000);
+
+    // Time the leader has to reply to a change forwarded to it, in milliseconds
+    private static final long FORWARD_DEADLINE = Long.getLong("forwardDeadline", 2000);
+
+    private final String _self;
+    private final List<String> _members;
+    private final NamingServices _services;
+
+    // Null if the registry is only kept in memory
+    private final RegistryLog _log;
+
+    // Channels to the other members, and a thread per member sending it the changes in order
+    private final Map<String, ManagedChannel> _channels = new LinkedHashMap<>();
+    private final Map<String, ExecutorService> _senders = new HashMap<>();
+
+    // Last reply of every other member to a status request, and when it came
+    private final Map<String, StatusResponse> _statuses = new ConcurrentHashMap<>();
+    private final Map<String, Long> _lastSeen = new ConcurrentHashMap<>();
+
+    // Last change applied here, and the one applied when the previous status requests were sent
+    private long _epoch = 0;
+    private long _seq = 0;
+    private StatusResponse _pinged = StatusResponse.getDefaultInstance();
+
+    private volatile boolean _leading = false;
+
+    /**
+     * Joins a group, starting from the registry in the log
+     *
+     * @param self address of this member
+     * @param members addresses of every member, in the order they take the lead in
+     * @param services
+     * @param log
+     * @throws IOException
+     */
+    public NamingGroup(String self, List<String> members, NamingServices services, RegistryLog log) throws IOException {
+        this._self = self;
+        this._services = services;
+        this._log = log;
+
+        final List<String> group = new ArrayList<>(members);
+        if (!group.contains(self)) {
+            group.add(self);
+        }
+        this._members = List.copyOf(group);
+
+        for (String member : _members) {
+            if (member.equals(self)) {
+                continue;
+            }
+            final String[] address = member.split(":");
+            _channels.put(member, ManagedChannelBuilder.forAddress(address[0], Integer.parseInt(address[1]))
+                    .usePlaintext().build());
+            _senders.put(member, Executors.newSingleThreadExecutor(daemon("replication-" + member)));
+        }
+
+        if (log != null) {
+            final List<RegistryOperation> operations = log.read();
+            operations.forEach(this::applyLocally);
+            NamingServer.debug(String.format("Registry restored from %d logged changes, at %d.%d",
+                    operations.size(), _epoch, _seq));
+        }
+    }
+
+    /**
+     * Finds out which member leads, and keeps checking every PING_INTERVAL
+     */
+    public void start() {
+        ping();
+        Executors.newSingleThreadScheduledExecutor(daemon("naming-ping"))
+                .scheduleWithFixedDelay(this::ping, PING_INTERVAL, PING_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isLeader() {
+        return _leading;
+    }
+
+    /**
+     * Gets a stub to forward changes to the leader
+     *
+     * @return null if no other member leads
+     */
+    public NamingServerServiceBlockingStub getLeaderStub() {
+        final String leader = leader();
+        if (leader.equals(_self)) {
+            return null;
+        }
+        return NamingServerServiceGrpc.newBlockingStub(_channels.get(leader))
+                .withDeadlineAfter(FORWARD_DEADLINE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes a change to the registry, logging it and sending it to the other
+     * members, and waits for a majority of the group to have applied it
+     *
+     * @param change
+     * @return false if this member does not lead the group, or a majority did not
+     * apply the change within REPLICATION_DEADLINE, in which case it may still be kept
+     */
+    public boolean submit(RegistryOperation.Builder change) {
+        // Applied here, so this member counts towards the majority
+        final CountDownLatch majority = new CountDownLatch(_members.size() / 2);
+        synchronized (this) {
+            if (!_leading) {
+                return false;
+            }
+            final RegistryOperation operation = change.setEpoch(_epoch).setSeq(_seq + 1).build();
+            if (_log != null) {
+                _log.append(operation);
+            }
+            applyLocally(operation);
+            compactLog();
+            for (String member : _channels.keySet()) {
+                send(member, operation).thenAccept(applied -> {
+                    if (applied) {
+                        majority.countDown();
+                    }
+                });
+            }
+        }
+
+        try {
+            return majority.await(REPLICATION_DEADLINE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Removes the servers whose lease expired, if this member leads the group.
+     * The other members keep them until the leader's removal reaches them
+     */
+    public void reap() {
+        if (!_leading) {
+            return;
+        }
+        for (RegistryEntry expired : _services.getExpiredServers()) {
+            NamingServer.debug(String.format("Lease of server with address %s expired", expired.getAddress()));
+            submit(RegistryOperation.newBuilder().setDelete(expired));
+        }
+    }
+
+    /**
+     * Applies a change sent by the leader, if it follows the last one applied here
+     *
+     * @param operation
+     * @return
+     */
+    public synchronized ReplicateResponse replicated(RegistryOperation operation) {
+        final boolean applies = operation.hasReset()
+                ? !before(operation.getEpoch(), operation.getSeq(), _epoch, _seq)
+                : operation.getEpoch() == _epoch && operation.getSeq() == _seq + 1;
+        if (applies) {
+            if (_leading && operation.getEpoch() > _epoch) {
+                _leading = false;
+                NamingServer.debug("Another member took the lead");
+            }
+            if (_log != null) {
+                _log.append(operation);
+            }
+            applyLocally(operation);
+            compactLog();
+        }
+        return ReplicateResponse.newBuilder().setApplied(applies).setEpoch(_epoch).build();
+    }
+
+    public synchronized StatusResponse status() {
+        return StatusResponse.newBuilder().setEpoch(_epoch).setSeq(_seq).build();
+    }
+
+    /**
+     * Gets the whole registry, as a reset numbered as the last change applied here
+     *
+     * @return
+     */
+    public synchronized RegistryOperation snapshot() {
+        return RegistryOperation.newBuilder().setEpoch(_epoch).setSeq(_seq).setReset(_services.toRegistry()).build();
+    }
+
+    /**
+     * Rewrites the log as the whole registry once enough changes were appended to it
+     */
+    private void compactLog() {
+        if (_log != null && _log.isLong()) {
+            _log.append(snapshot());
+        }
+    }
+
+    private void applyLocally(RegistryOperation operation) {
+        _services.apply(operation);
+        _epoch = operation.getEpoch();
+        _seq = operation.getSeq();
+    }
+
+    /**
+     * Asks every other member for the last change it applied, then checks who leads
+     */
+    private void ping() {
+        final Map<String, ListenableFuture<StatusResponse>> replies = new HashMap<>();
+        _channels.forEach((member, channel) -> replies.put(member, NamingReplicaServiceGrpc.newFutureStub(channel)
+                .withDeadlineAfter(PING_INTERVAL, TimeUnit.MILLISECONDS).status(StatusRequest.getDefaultInstance())));
+
+        for (Map.Entry<String, ListenableFuture<StatusResponse>> reply : replies.entrySet()) {
+            try {
+                _statuses.put(reply.getKey(), reply.getValue().get());
+                _lastSeen.put(reply.getKey(), System.currentTimeMillis());
+            } catch (ExecutionException e) {
+                // Down, or too slow to count as up. Reconnect on the next request rather
+                // than after the channel's backoff, which would keep a restarted member down
+                _channels.get(reply.getKey()).resetConnectBackoff();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        try {
+            checkLeadership();
+        } catch (RuntimeException e) {
+            // Checked again on the next ping
+            NamingServer.debug("Leadership check failed: " + e.getMessage());
+        }
+    }
+
+    private void checkLeadership() {
+        final String latest;
+        synchronized (this) {
+            if (!mustLead()) {
+                _pinged = status();
+                return;
+            }
+            latest = latest();
+        }
+
+        // Fetched without holding the lock, so changes and status requests are not held up behind it
+        RegistryOperation registry = null;
+        if (latest != null) {
+            try {
+                registry = NamingReplicaServiceGrpc.newBlockingStub(_channels.get(latest))
+                        .withDeadlineAfter(REPLICATION_DEADLINE, TimeUnit.MILLISECONDS)
+                        .fetch(StatusRequest.getDefaultInstance());
+            } catch (StatusRuntimeException e) {
+                // Tried again on the next ping
+                NamingServer.debug(String.format("Failed to get the registry from %s: %s", latest, e.getStatus()));
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (leads()) {
+                lead(registry);
+            }
+            _pinged = status();
+        }
+    }
+
+    /**
+     * Checks who leads, stepping down if another member does, and sending the
+     * whole registry to the members that missed changes if this one does
+     *
+     * @return true if this member has to take the lead
+     */
+    private boolean mustLead() {
+        final boolean leader = leads();
+        if (leader && !_leading) {
+            return true;
+        } else if (!leader && _leading) {
+            _leading = false;
+            NamingServer.debug(leader().equals(_self) ? "No longer leading, a majority of the group is down"
+                    : String.format("No longer leading, %s leads", leader()));
+        } else if (leader) {
+            for (Map.Entry<String, StatusResponse> status : _statuses.entrySet()) {
+                final StatusResponse member = status.getValue();
+                if (!isUp(status.getKey())) {
+                    continue;
+                }
+                if (member.getEpoch() > _epoch) {
+                    // Led the group while this member could not reach it
+                    return true;
+                }
+                // Still behind the changes sent before the previous requests, so it missed some
+                if (before(member.getEpoch(), member.getSeq(), _pinged.getEpoch(), _pinged.getSeq())) {
+                    send(status.getKey(), snapshot());
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the member that is up with the most recent registry
+     *
+     * @return null if none is more recent than this member's
+     */
+    private String latest() {
+        String latest = null;
+        long epoch = _epoch;
+        long seq = _seq;
+        for (Map.Entry<String, StatusResponse> status : _statuses.entrySet()) {
+            final StatusResponse member = status.getValue();
+            if (isUp(status.getKey()) && before(epoch, seq, member.getEpoch(), member.getSeq())) {
+                latest = status.getKey();
+                epoch = member.getEpoch();
+                seq = member.getSeq();
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Takes the lead, starting from the most recent registry of the members that are up
+     *
+     * @param registry fetched from that member, null if this member's is the most recent
+     */
+    private void lead(RegistryOperation registry) {
+        // Changes may have been applied here while it was being fetched
+        if (registry != null && before(_epoch, _seq, registry.getEpoch(), registry.getSeq())) {
+            applyLocally(registry);
+        }
+
+        long maxEpoch = _epoch;
+        for (Map.Entry<String, StatusResponse> status : _statuses.entrySet()) {
+            if (isUp(status.getKey())) {
+                maxEpoch = Math.max(maxEpoch, status.getValue().getEpoch());
+            }
+        }
+
+        // Each member takes its own epochs, so two members leading at once never number changes alike
+        final long next = maxEpoch + 1;
+        _epoch = next + Math.floorMod(_members.indexOf(_self) - next, _members.size());
+        _seq = 0;
+        final RegistryOperation reset = snapshot();
+        if (_log != null) {
+            _log.append(reset);
+        }
+
+        // The servers had no leader renewing their leases in the meantime
+        _services.renewServers();
+        _leading = true;
+        NamingServer.debug(String.format("Leading the group in epoch %d", _epoch));
+
+        for (String member : _channels.keySet()) {
+            send(member, reset);
+        }
+    }
+
+    /**
+     * Gets the first member that is up, in the order of the group
+     *
+     * @return
+     */
+    private String leader() {
+        for (String member : _members) {
+            if (member.equals(_self) || isUp(member)) {
+                return member;
+            }
+        }
+        return _self;
+    }
+
+    /**
+     * Returns true if this member should lead the group: it comes first of the
+     * members that are up, and with them it makes up a majority of the group,
+     * so the members on the smaller side of a partition never take changes
+     *
+     * @return
+     */
+    private boolean leads() {
+        int up = 1;
+        for (String member : _channels.keySet()) {
+            if (isUp(member)) {
+                up++;
+            }
+        }
+        return leader().equals(_self) && up > _members.size() / 2;
+    }
+
+    private boolean isUp(String member) {
+        return System.currentTimeMillis() - _lastSeen.getOrDefault(member, 0L) <= PINGS_MISSED * PING_INTERVAL;
+    }
+
+    /**
+     * Sends a change to a member, after the ones sent to it before. Members
+     * that are down are skipped, and sent the whole registry once they are up
+     *
+     * @return completed with true once the member has the change
+     */
+    private CompletableFuture<Boolean> send(String member, RegistryOperation operation) {
+        if (!isUp(member)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            final NamingReplicaServiceGrpc.NamingReplicaServiceBlockingStub stub = NamingReplicaServiceGrpc
+                    .newBlockingStub(_channels.get(member)).withDeadlineAfter(REPLICATION_DEADLINE, TimeUnit.MILLISECONDS);
+            try {
+                final ReplicateResponse response = stub.replicate(operation);
+                if (!response.getApplied() && response.getEpoch() <= operation.getEpoch()) {
+                    // The whole registry, taken after the change was applied here
+                    return stub.replicate(snapshot()).getApplied();
+                }
+                return response.getApplied();
+            } catch (StatusRuntimeException e) {
+                NamingServer.debug(String.format("Failed to send change to %s: %s", member, e.getStatus()));
+                return false;
+            }
+        }, _senders.get(member));
+    }
+
+    /**
+     * Returns true if a change numbered (epoch, seq) comes before one numbered (otherEpoch, otherSeq)
+     */
+    private static boolean before(long epoch, long seq, long otherEpoch, long otherSeq) {
+        return epoch < otherEpoch || (epoch == otherEpoch && seq < otherSeq);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,40 @@
+package pt.ulisboa.tecnico.classes.namingserver;
+
+import io.grpc.stub.StreamObserver;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingReplicaServiceGrpc.NamingReplicaServiceImplBase;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryOperation;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.ReplicateResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.StatusRequest;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.StatusResponse;
+
+public class NamingReplicaServiceImpl extends NamingReplicaServiceImplBase {
+    final private NamingGroup _group;
+
+    public NamingReplicaServiceImpl(NamingGroup group) {
+        _group = group;
+    }
+
+    @Override
+    public void replicate(RegistryOperation request, StreamObserver<ReplicateResponse> responseObserver) {
+        ReplicateResponse response = _group.replicated(request);
+        if (!response.getApplied()) {
+            NamingServer.debug(String.format("Change %d.%d does not follow the last one applied",
+                    request.getEpoch(), request.getSeq()));
+        }
+
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void status(StatusRequest request, StreamObserver<StatusResponse> responseObserver) {
+        responseObserver.onNext(_group.status());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void fetch(StatusRequest request, StreamObserver<RegistryOperation> responseObserver) {
+        responseObserver.onNext(_group.snapshot());
+        responseObserver.onCompleted();
+    }
+}
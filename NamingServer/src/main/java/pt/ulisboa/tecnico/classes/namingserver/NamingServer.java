@@ -4,37 +4,78 @@ import io.grpc.BindableService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 public class NamingServer {
 
   private static boolean _debug = false;
 
+  // Interval between searches for expired leases, in milliseconds
+  private static final long REAP_INTERVAL = Long.getLong("reapInterval", 500);
+
+  // Interval between rounds of health probes, in milliseconds
+  private static final long PROBE_INTERVAL = Long.getLong("probeInterval", 1000);
+
   public static void debug(String debugMessage) {
     if (_debug)
       System.err.printf("D> %s%n%n", debugMessage);
   }
 
+  private static ScheduledExecutorService daemonExecutor(String name) {
+    return Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
   public static void main(String[] args) throws Exception {
 
     if ((args.length > 0) && (args[0].equals("-debug")) || (System.getProperty("debug") != null)) {
       _debug = true;
     }
 
-    final int _port = 5000;
-    final String _host = "localhost";
+    // Address of this naming server, and of every member of its group in the order they take the lead in
+    final String _address = System.getProperty("namingAddress", "localhost:5000");
+    final List<String> members = List.of(System.getProperty("namingServers", _address).split(","));
+    final String _host = _address.split(":")[0];
+    final int _port = Integer.parseInt(_address.split(":")[1]);
+
+    // Registry kept on disk, so a restart does not lose it
+    final RegistryLog log = (System.getProperty("dataDir") != null)
+        ? new RegistryLog(Path.of(System.getProperty("dataDir"), String.format("naming_%s_%d.log", _host, _port)))
+        : null;
+
+    final NamingServices namingServices = new NamingServices();
+    final NamingGroup group = new NamingGroup(_address, members, namingServices, log);
+    final BindableService NamingServerServiceImpl = new NamingServerServiceImpl(namingServices, group);
+
+    // Removes the servers whose lease expired
+    daemonExecutor("reaper").scheduleWithFixedDelay(group::reap,
+        REAP_INTERVAL, REAP_INTERVAL, TimeUnit.MILLISECONDS);
 
-    final BindableService NamingServerServiceImpl = new NamingServerServiceImpl();
+    // Orders the servers by health
+    daemonExecutor("prober").scheduleWithFixedDelay(new HealthProber(namingServices),
+        PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
 
     // Create a new server to listen on port and add remote services
     Server namingServer = ServerBuilder
         .forPort(_port)
         .addService(NamingServerServiceImpl)
+        .addService(new NamingReplicaServiceImpl(group))
         .build();
 
-    // Start server
+    // Start server, then find out which member of the group leads
     namingServer.start();
+    group.start();
 
     debug(NamingServer.class.getSimpleName());
-    debug(String.format("Server started on %s port: %d", _host, _port));
+    debug(String.format("Server started on %s port: %d, %s the group of %s", _host, _port,
+        group.isLeader() ? "leading" : "following", members));
 
     // Wait until server is terminated
     namingServer.awaitTermination();
@@ -1,22 +1,41 @@
 package pt.ulisboa.tecnico.classes.namingserver;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.DeleteRequest;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.DeleteResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.HeartbeatRequest;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.HeartbeatResponse;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupRequest;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupResponse;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.RegisterRequest;
 import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.RegisterResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryEntry;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryOperation;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc.NamingServerServiceBlockingStub;
 import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc.NamingServerServiceImplBase;
 
 public class NamingServerServiceImpl extends NamingServerServiceImplBase {
-    final private NamingServices _namingServices = new NamingServices();
+    private static final Status NO_LEADER = Status.UNAVAILABLE.withDescription("No naming server leads the group");
+
+    final private NamingServices _namingServices;
+    final private NamingGroup _group;
+
+    public NamingServerServiceImpl(NamingServices namingServices, NamingGroup group) {
+        _namingServices = namingServices;
+        _group = group;
+    }
 
     @Override
     public void register(RegisterRequest request, StreamObserver<RegisterResponse> responseObserver) {
+        if (forwarded(stub -> stub.register(request), responseObserver)) {
+            return;
+        }
 
         String serviceName = request.getServiceName();
         String[] address = request.getAddress().split(":");
@@ -26,13 +45,20 @@ public class NamingServerServiceImpl extends NamingServerServiceImplBase {
         Integer port = Integer.parseInt(address[1]);
 
 
-        // Add server to naming server
-        _namingServices.addServer(serviceName, host, port, qualifiers);
+        // Add server to naming server, and to the other members of the group
+        long ttl = NamingServices.grantTtl(request.getTtl());
+        RegistryEntry entry = RegistryEntry.newBuilder().setServiceName(serviceName).setAddress(request.getAddress())
+                .addAllQualifiers(qualifiers).setTtl(ttl).build();
+        if (!_group.submit(RegistryOperation.newBuilder().setRegister(entry))) {
+            responseObserver.onError(NO_LEADER.asRuntimeException());
+            return;
+        }
 
-        NamingServer.debug(String.format("Registered server with address %s:%d with qualifiers %s", host, port, qualifiers));
+        NamingServer.debug(String.format("Registered server with address %s:%d with qualifiers %s for %dms",
+                host, port, qualifiers, ttl));
 
         // Build and send response
-        responseObserver.onNext(RegisterResponse.newBuilder().build());
+        responseObserver.onNext(RegisterResponse.newBuilder().setTtl(ttl).build());
         responseObserver.onCompleted();
     }
 
@@ -40,55 +66,93 @@ public class NamingServerServiceImpl extends NamingServerServiceImplBase {
     public void lookup(LookupRequest request, StreamObserver<LookupResponse> responseObserver) {
 
         String service = request.getServiceName();
-        List<String> addresses = new ArrayList<>();
-        LookupResponse response;
 
         NamingServer.debug(String.format("Lookup requested for service %s", service));
 
-        // If service exists look for servers with qualifiers
-        if (_namingServices.serviceExists(service)) {
-            List<String> qualifiers = request.getQualifiersList();
-
-            // If no qualifiers were given, return servers with any qualifier
-            if (qualifiers.size() == 0) {
-                qualifiers.add("P");
-                qualifiers.add("S");
-            }
-
-            ServiceEntry serviceEntry = _namingServices.getServiceEntry(service);
-
-            if  (serviceEntry != null) {
-                for (String qualifier : qualifiers) {
-                    List<ServerEntry> servers = serviceEntry.getServerEntriesWithQualifiers(qualifier);
-                    for (ServerEntry server : servers) {
-                        // Add server address to list
-                        addresses.add(server.getHost() + ":" + server.getPort());
-                    }
-                }
-            }
-        }
-
-        response = LookupResponse.newBuilder().addAllAddress(addresses).build();
+        // Servers with any of the qualifiers, or with any qualifier if none were given
+        ServiceEntry serviceEntry = _namingServices.getServiceEntry(service);
+        LookupResponse response = (serviceEntry != null)
+                ? serviceEntry.lookup(request.getQualifiersList()) : LookupResponse.getDefaultInstance();
 
-        // Build and send response
+        // Send response
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 
     @Override
     public void delete(DeleteRequest request, StreamObserver<DeleteResponse> responseObserver) {
-        String service = request.getServiceName();
-        String[] address = request.getAddress().split(":");
-
-        String host = address[0];
-        Integer port = Integer.parseInt(address[1]);
+        if (forwarded(stub -> stub.delete(request), responseObserver)) {
+            return;
+        }
 
-        _namingServices.getServiceEntry(service).removeServerEntry(host, port);
+        RegistryEntry entry = RegistryEntry.newBuilder().setServiceName(request.getServiceName())
+                .setAddress(request.getAddress()).build();
+        if (!_group.submit(RegistryOperation.newBuilder().setDelete(entry))) {
+            responseObserver.onError(NO_LEADER.asRuntimeException());
+            return;
+        }
 
-        NamingServer.debug(String.format("Removed server with address %s:%d", host, port));
+        NamingServer.debug(String.format("Removed server with address %s", request.getAddress()));
 
         // Build and send response
         responseObserver.onNext(DeleteResponse.getDefaultInstance());
         responseObserver.onCompleted();
     }
+
+    @Override
+    public void heartbeat(HeartbeatRequest request, StreamObserver<HeartbeatResponse> responseObserver) {
+        // Leases are only kept by the leader
+        if (forwarded(stub -> stub.heartbeat(request), responseObserver)) {
+            return;
+        }
+
+        ServiceEntry serviceEntry = _namingServices.getServiceEntry(request.getServiceName());
+        boolean registered = (serviceEntry != null) && serviceEntry.renewServerEntry(request.getAddress());
+
+        if (!registered) {
+            NamingServer.debug(String.format("Heartbeat from unregistered server with address %s", request.getAddress()));
+        }
+
+        // Build and send response
+        responseObserver.onNext(HeartbeatResponse.newBuilder().setRegistered(registered).build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void watch(LookupRequest request, StreamObserver<LookupResponse> responseObserver) {
+        String service = request.getServiceName();
+
+        NamingServer.debug(String.format("Watch requested for service %s with qualifiers %s",
+                service, request.getQualifiersList()));
+
+        // Watched before any server registers, so the watcher hears of the first one
+        _namingServices.getOrCreateServiceEntry(service)
+                .watch(request.getQualifiersList(), (ServerCallStreamObserver<LookupResponse>) responseObserver);
+    }
+
+    /**
+     * Forwards a change to the leader of the group, if this member does not lead it, and relays its response
+     *
+     * @param call sends the change to the leader
+     * @param responseObserver
+     * @return false if this member leads the group, so it makes the change itself
+     */
+    private <T> boolean forwarded(Function<NamingServerServiceBlockingStub, T> call, StreamObserver<T> responseObserver) {
+        if (_group.isLeader()) {
+            return false;
+        }
+        NamingServerServiceBlockingStub leader = _group.getLeaderStub();
+        if (leader == null) {
+            responseObserver.onError(NO_LEADER.asRuntimeException());
+            return true;
+        }
+
+        try {
+            responseObserver.onNext(call.apply(leader));
+            responseObserver.onCompleted();
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+        }
+        return true;
+    }
 }
@@ -1,34 +1,144 @@
 package pt.ulisboa.tecnico.classes.namingserver;
 
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.Registry;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryEntry;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryOperation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class NamingServices {
+
+    // Lease given to servers that do not ask for one, in milliseconds
+    private static final long LEASE_TTL = Long.getLong("leaseTtl", 10000);
+
+    // Shortest lease given, in milliseconds, so servers renew it at most every 100 milliseconds
+    private static final long MIN_LEASE_TTL = 300;
+
     private final ConcurrentHashMap<String, ServiceEntry> _serviceEntries = new ConcurrentHashMap<String, ServiceEntry>();
 
+    /**
+     * Gets the lease given to a server that asks for one. Leases too short
+     * to renew are raised to MIN_LEASE_TTL
+     *
+     * @param ttl lease asked for, in milliseconds, 0 for the default
+     * @return
+     */
+    public static long grantTtl(long ttl) {
+        return Math.max((ttl > 0) ? ttl : LEASE_TTL, MIN_LEASE_TTL);
+    }
+
+    /**
+     * Applies a change to the registry
+     *
+     * @param operation
+     */
+    public void apply(RegistryOperation operation) {
+        switch (operation.getChangeCase()) {
+            case REGISTER:
+                addServer(operation.getRegister());
+                break;
+            case DELETE:
+                final ServiceEntry serviceEntry = getServiceEntry(operation.getDelete().getServiceName());
+                if (serviceEntry != null) {
+                    serviceEntry.removeServerEntry(operation.getDelete().getAddress());
+                }
+                break;
+            case RESET:
+                reset(operation.getReset());
+                break;
+            default:
+                break;
+        }
+    }
+
     /**
      * Add server to list of servers of the given service
      * If service does not exist create it and add server to it's list
      *
-     * @param serviceName
-     * @param host
-     * @param port
-     * @param qualifiers
-     */
-    public synchronized void addServer(String serviceName, String host, Integer port, List<String> qualifiers) {
-        ServiceEntry serviceEntry;
-
-        if (_serviceEntries.containsKey(serviceName)) {
-            serviceEntry = _serviceEntries.get(serviceName);
-        } else {
-            serviceEntry = new ServiceEntry();
-            _serviceEntries.put(serviceName, serviceEntry);
-        }
+     * @param entry
+     */
+    private void addServer(RegistryEntry entry) {
+        ServiceEntry serviceEntry = getOrCreateServiceEntry(entry.getServiceName());
 
-        ServerEntry serverEntry = new ServerEntry(host, port, qualifiers);
+        ServerEntry serverEntry = toServerEntry(entry);
         serviceEntry.addServerEntry(serverEntry);
     }
 
+    /**
+     * Replaces the servers of every service with the ones in the registry
+     *
+     * @param registry
+     */
+    private void reset(Registry registry) {
+        final Map<String, List<ServerEntry>> servers = new HashMap<>();
+        for (RegistryEntry entry : registry.getEntriesList()) {
+            servers.computeIfAbsent(entry.getServiceName(), service -> new ArrayList<>()).add(toServerEntry(entry));
+        }
+
+        // Services left without servers are kept, for their watchers
+        for (String service : _serviceEntries.keySet()) {
+            servers.putIfAbsent(service, List.of());
+        }
+        servers.forEach((service, entries) -> getOrCreateServiceEntry(service).resetServerEntries(entries));
+    }
+
+    /**
+     * Gets every registered server
+     *
+     * @return
+     */
+    public Registry toRegistry() {
+        final Registry.Builder registry = Registry.newBuilder();
+        _serviceEntries.forEach((service, serviceEntry) -> {
+            for (ServerEntry server : serviceEntry.getServerEntries()) {
+                registry.addEntries(toRegistryEntry(service, server));
+            }
+        });
+        return registry.build();
+    }
+
+    /**
+     * Gets the servers of every service whose lease expired
+     *
+     * @return
+     */
+    public List<RegistryEntry> getExpiredServers() {
+        final long now = System.currentTimeMillis();
+        final List<RegistryEntry> expired = new ArrayList<>();
+        _serviceEntries.forEach((service, serviceEntry) -> {
+            for (ServerEntry server : serviceEntry.getExpiredServerEntries(now)) {
+                expired.add(toRegistryEntry(service, server));
+            }
+        });
+        return expired;
+    }
+
+    /**
+     * Renews the lease of every server, giving them a whole lease to send a heartbeat
+     */
+    public void renewServers() {
+        _serviceEntries.values().forEach(ServiceEntry::renewServerEntries);
+    }
+
+    /**
+     * Gets a service, creating it without servers if it does not exist
+     *
+     * @param service
+     * @return
+     */
+    public ServiceEntry getOrCreateServiceEntry(String service) {
+        return _serviceEntries.computeIfAbsent(service, name -> new ServiceEntry());
+    }
+
+    public Collection<ServiceEntry> getServiceEntries() {
+        return _serviceEntries.values();
+    }
+
     public ServiceEntry getServiceEntry(String service) {
         return _serviceEntries.get(service);
     }
@@ -37,4 +147,14 @@ public class NamingServices {
         return _serviceEntries.containsKey(service);
     }
 
+    private static ServerEntry toServerEntry(RegistryEntry entry) {
+        final String[] address = entry.getAddress().split(":");
+        return new ServerEntry(address[0], Integer.parseInt(address[1]), entry.getQualifiersList(), entry.getTtl());
+    }
+
+    private static RegistryEntry toRegistryEntry(String service, ServerEntry server) {
+        return RegistryEntry.newBuilder().setServiceName(service).setAddress(server.getAddress())
+                .addAllQualifiers(server.getQualifiers()).setTtl(server.getTtl()).build();
+    }
+
 }
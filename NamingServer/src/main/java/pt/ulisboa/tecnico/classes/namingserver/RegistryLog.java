@@ -0,0 +1,109 @@
+package pt.ulisboa.tecnico.classes.namingserver;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerNamingServer.RegistryOperation;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log of the changes made to the registry, read back when the naming server
+ * starts. Every append is synced before the change is acknowledged, as changes
+ * are rare. A reset replaces the whole registry, so the log is rewritten to
+ * hold only it, and the naming group appends one once the log is long
+ */
+public class RegistryLog implements Closeable {
+
+    // Number of changes after which the log is rewritten as the whole registry
+    private static final int COMPACTION = Integer.getInteger("registryLogCompaction", 1000);
+
+    private final Path _path;
+    private FileOutputStream _output;
+
+    // Changes appended since the log was last rewritten
+    private int _appended = 0;
+
+    public RegistryLog(Path path) throws IOException {
+        this._path = path;
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        this._output = new FileOutputStream(path.toFile(), true);
+    }
+
+    /**
+     * Reads every change in the log, up to the first one that was not fully written
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized List<RegistryOperation> read() throws IOException {
+        final List<RegistryOperation> operations = new ArrayList<>();
+        try (InputStream input = Files.newInputStream(_path)) {
+            RegistryOperation operation;
+            while ((operation = RegistryOperation.parseDelimitedFrom(input)) != null) {
+                operations.add(operation);
+            }
+        } catch (InvalidProtocolBufferException e) {
+            // Torn by a crash while it was being written, so it was never acknowledged
+            NamingServer.debug("Registry log ends in a partial record, ignored");
+        }
+        _appended = operations.size();
+        return operations;
+    }
+
+    /**
+     * Appends a change, returning once it is on disk
+     *
+     * @param operation
+     */
+    public synchronized void append(RegistryOperation operation) {
+        try {
+            if (operation.hasReset()) {
+                rewrite(operation);
+                return;
+            }
+            operation.writeDelimitedTo(_output);
+            _output.flush();
+            _output.getFD().sync();
+            _appended++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the registry log", e);
+        }
+    }
+
+    /**
+     * Returns true if the log holds enough changes to be rewritten as the whole registry
+     *
+     * @return
+     */
+    public synchronized boolean isLong() {
+        return _appended >= COMPACTION;
+    }
+
+    /**
+     * Replaces the log with a single reset, written to a new file first
+     */
+    private void rewrite(RegistryOperation reset) throws IOException {
+        final Path next = _path.resolveSibling(_path.getFileName() + ".next");
+        try (FileOutputStream output = new FileOutputStream(next.toFile())) {
+            reset.writeDelimitedTo(output);
+            output.getFD().sync();
+        }
+        _output.close();
+        Files.move(next, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _output = new FileOutputStream(_path.toFile(), true);
+        _appended = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        _output.close();
+    }
+}
@@ -3,14 +3,79 @@ package pt.ulisboa.tecnico.classes.namingserver;
 import java.util.List;
 
 public class ServerEntry {
+
+    // Ranks of a server by its last probe, before its latency is considered
+    private static final long ACTIVE = 0;
+    private static final long NOT_PROBED = 1;
+    private static final long INACTIVE = 2;
+    private static final long UNREACHABLE = 3;
+
     private final String _host;
     private final Integer _port;
     private final List<String> _qualifiers;
 
-    ServerEntry(String host, Integer port, List<String> qualifiers) {
+    // host:port, as sent in lookup responses
+    private final String _address;
+
+    // Lease, in milliseconds, and when it ends unless renewed
+    private final long _ttl;
+    private volatile long _expiresAt;
+
+    // Health as last probed, and the probes' round trip averaged over time, in microseconds
+    private volatile long _rank = NOT_PROBED;
+    private volatile long _latency = 0;
+
+    ServerEntry(String host, Integer port, List<String> qualifiers, long ttl) {
         _host = host;
         _port = port;
-        _qualifiers = qualifiers;
+        _qualifiers = List.copyOf(qualifiers);
+        _address = host + ":" + port;
+        _ttl = ttl;
+        renew();
+    }
+
+    /**
+     * Extends the lease by its ttl from now
+     */
+    public void renew() {
+        _expiresAt = System.currentTimeMillis() + _ttl;
+    }
+
+    public boolean isExpired(long now) {
+        return now > _expiresAt;
+    }
+
+    /**
+     * Records the outcome of a probe that got a reply
+     *
+     * @param active
+     * @param latency round trip of the probe, in microseconds
+     */
+    public void probed(boolean active, long latency) {
+        _rank = active ? ACTIVE : INACTIVE;
+        _latency = (_latency == 0) ? latency : (3 * _latency + latency) / 4;
+    }
+
+    /**
+     * Records a probe that got no reply
+     *
+     * @return true if the last probe before it got one
+     */
+    public boolean unreachable() {
+        final boolean reachable = _rank != UNREACHABLE;
+        _rank = UNREACHABLE;
+        return reachable;
+    }
+
+    /**
+     * Gets the health score of the server, lower is better: active servers come first, faster
+     * ones before slower ones, then servers not probed yet, then inactive and unreachable ones.
+     * Latency counts in whole milliseconds, so servers about as fast keep their order
+     *
+     * @return
+     */
+    public long getScore() {
+        return (_rank << 32) + Math.min(_latency / 1000, Integer.MAX_VALUE);
     }
 
     public String getHost() {
@@ -25,4 +90,12 @@ public class ServerEntry {
         return _qualifiers;
     }
 
-}
\ No newline at end of file
+    public String getAddress() {
+        return _address;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+}
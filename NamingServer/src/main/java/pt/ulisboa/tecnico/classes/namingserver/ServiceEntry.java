@@ -1,46 +1,306 @@
 package pt.ulisboa.tecnico.classes.namingserver;
 
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupResponse;
+
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Servers of a service. Registrations, deletions and health probes rebuild an
+ * immutable view of the servers, indexed by qualifier and healthiest first, and
+ * swap it in, so lookups never lock and answer with responses built once per
+ * view. Watchers are sent the response to their lookup every time it changes
+ */
 public class ServiceEntry {
-    private final Set<ServerEntry> _serverEntries = new HashSet<ServerEntry>();
+
+    // Qualifiers looked up when a lookup gives none
+    private static final List<String> DEFAULT_QUALIFIERS = List.of("P", "S");
+
+    // Time a watcher can stay unable to take more responses, in milliseconds, before it is dropped
+    private static final long WATCH_STALL = Long.getLong("watchStall", 10000);
+
+    // Registered servers by address, only changed while holding the entry's lock
+    private final Map<String, ServerEntry> _serverEntries = new LinkedHashMap<String, ServerEntry>();
+
+    private volatile View _view = new View(List.of());
+
+    // Given every view while holding the entry's lock, so every watcher gets the views in order
+    private final Set<Watch> _watches = ConcurrentHashMap.newKeySet();
 
     ServiceEntry() {
     }
 
     /**
-     * Adds a server
-     * 
+     * Adds a server, replacing the one registered before with the same address
+     *
      * @param entry
      */
-    public void addServerEntry(ServerEntry entry) {
-        _serverEntries.add(entry);
+    public synchronized void addServerEntry(ServerEntry entry) {
+        _serverEntries.put(entry.getAddress(), entry);
+        update();
     }
 
     /**
      * Removes a server
+     *
+     * @param address
+     */
+    public synchronized void removeServerEntry(String address) {
+        if (_serverEntries.remove(address) != null) {
+            update();
+        }
+    }
+
+    /**
+     * Replaces the servers with the given ones. Servers registered before
+     * with the same address and qualifiers are kept, with their health
+     *
+     * @param entries
+     */
+    public synchronized void resetServerEntries(Collection<ServerEntry> entries) {
+        final Map<String, ServerEntry> previous = new HashMap<>(_serverEntries);
+        _serverEntries.clear();
+        for (ServerEntry entry : entries) {
+            final ServerEntry kept = previous.get(entry.getAddress());
+            _serverEntries.put(entry.getAddress(),
+                    (kept != null && kept.getQualifiers().equals(entry.getQualifiers())) ? kept : entry);
+        }
+        update();
+    }
+
+    /**
+     * Renews the lease of a server
+     *
+     * @param address
+     * @return false if the server is not registered
+     */
+    public synchronized boolean renewServerEntry(String address) {
+        final ServerEntry server = _serverEntries.get(address);
+        if (server == null) {
+            return false;
+        }
+        server.renew();
+        return true;
+    }
+
+    /**
+     * Renews the lease of every server
+     */
+    public synchronized void renewServerEntries() {
+        _serverEntries.values().forEach(ServerEntry::renew);
+    }
+
+    /**
+     * Gets the servers whose lease expired
+     *
+     * @param now
+     * @return
+     */
+    public synchronized List<ServerEntry> getExpiredServerEntries(long now) {
+        final List<ServerEntry> expired = new ArrayList<>();
+        for (ServerEntry server : _serverEntries.values()) {
+            if (server.isExpired(now)) {
+                expired.add(server);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Sends the response to a lookup of the given qualifiers to a watcher,
+     * right away and then every time it changes, until the watcher cancels
+     *
+     * @param qualifiers
+     * @param observer
+     */
+    public void watch(List<String> qualifiers, ServerCallStreamObserver<LookupResponse> observer) {
+        final Watch watch = new Watch(qualifiers.isEmpty() ? DEFAULT_QUALIFIERS : List.copyOf(qualifiers), observer);
+        observer.setOnCancelHandler(() -> _watches.remove(watch));
+        observer.setOnReadyHandler(watch::flush);
+
+        synchronized (this) {
+            _watches.add(watch);
+            watch.send(_view);
+        }
+    }
+
+    /**
+     * Reorders the servers by their health scores, if the scores changed their order
+     */
+    public synchronized void rescore() {
+        final View view = new View(_serverEntries.values());
+        if (!view._servers.equals(_view._servers)) {
+            swap(view);
+        }
+    }
+
+    /**
+     * Gets every registered server
+     *
+     * @return
      */
-    public void removeServerEntry(String host, Integer port) {
-        _serverEntries.removeIf(server -> (server.getHost().equals(host)) && (server.getPort().equals(port)));
+    public synchronized List<ServerEntry> getServerEntries() {
+        return List.copyOf(_serverEntries.values());
     }
 
     /**
-     * Returns all the servers with given qualifier(s)
-     * 
+     * Swaps in a view of the current servers and sends it to the watchers
+     */
+    private void update() {
+        swap(new View(_serverEntries.values()));
+    }
+
+    private void swap(View view) {
+        _view = view;
+        for (Watch watch : _watches) {
+            watch.send(view);
+        }
+    }
+
+    /**
+     * Returns all the servers with given qualifier
+     *
      * @param qualifier
      * @return
      */
     public List<ServerEntry> getServerEntriesWithQualifiers(String qualifier) {
-        List<ServerEntry> servers = new ArrayList<ServerEntry>();
+        return _view._servers.getOrDefault(qualifier, List.of());
+    }
+
+    /**
+     * Gets the response to a lookup of the given qualifiers, the addresses of every
+     * server with any of them, in the order the qualifiers are given
+     *
+     * @param qualifiers
+     * @return
+     */
+    public LookupResponse lookup(List<String> qualifiers) {
+        return _view.lookup(qualifiers.isEmpty() ? DEFAULT_QUALIFIERS : qualifiers);
+    }
+
+    /**
+     * Watcher of the servers with some qualifiers. Only the latest response is
+     * kept until the watcher can take it, so a slow watcher is sent the views it
+     * missed as one, and one that cannot take any for WATCH_STALL is dropped
+     */
+    private class Watch {
+
+        private final List<String> _qualifiers;
+        private final ServerCallStreamObserver<LookupResponse> _observer;
+
+        // Addresses last sent, so views that do not change them are not sent
+        private List<String> _sent;
+
+        // Latest response not sent yet, and since when the watcher could not take it
+        private LookupResponse _pending;
+        private long _stalledSince;
+
+        Watch(List<String> qualifiers, ServerCallStreamObserver<LookupResponse> observer) {
+            this._qualifiers = qualifiers;
+            this._observer = observer;
+        }
+
+        synchronized void send(View view) {
+            final LookupResponse response = view.lookup(_qualifiers);
+            _pending = response.getAddressList().equals(_sent) ? null : response;
+            flush();
 
-        for (ServerEntry server : _serverEntries) {
-            if (server.getQualifiers().contains(qualifier)) {
-                servers.add(server);
+            if (_pending != null && _stalledSince != 0 && System.currentTimeMillis() - _stalledSince > WATCH_STALL) {
+                _watches.remove(this);
+                try {
+                    _observer.onError(Status.RESOURCE_EXHAUSTED.withDescription("Watcher too slow")
+                            .asRuntimeException());
+                } catch (RuntimeException e) {
+                    // Cancelled in the meantime
+                }
+            }
+        }
+
+        /**
+         * Sends the pending response, if the watcher can take it
+         */
+        synchronized void flush() {
+            if (_pending == null) {
+                return;
+            }
+            if (!_observer.isReady()) {
+                if (_stalledSince == 0) {
+                    _stalledSince = System.currentTimeMillis();
+                }
+                return;
+            }
+            try {
+                _observer.onNext(_pending);
+                _sent = _pending.getAddressList();
+                _pending = null;
+                _stalledSince = 0;
+            } catch (RuntimeException e) {
+                // Cancelled in the meantime
+                _watches.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Servers of the service at some point in time
+     */
+    private static class View {
+
+        private final Map<String, List<ServerEntry>> _servers;
+
+        // Lookup responses of this view, only kept for the default qualifiers and the
+        // qualifiers servers have, so lookups of other qualifiers do not grow it
+        private final Map<List<String>, LookupResponse> _responses = new ConcurrentHashMap<>();
+
+        View(Iterable<ServerEntry> serverEntries) {
+            final Map<String, List<ServerEntry>> servers = new HashMap<>();
+            for (ServerEntry server : serverEntries) {
+                for (String qualifier : server.getQualifiers()) {
+                    servers.computeIfAbsent(qualifier, key -> new ArrayList<>()).add(server);
+                }
+            }
+
+            // Healthiest first, by scores taken once so they do not change while sorting
+            final Map<ServerEntry, Long> scores = new HashMap<>();
+            for (ServerEntry server : serverEntries) {
+                scores.put(server, server.getScore());
+            }
+            servers.replaceAll((qualifier, list) -> {
+                list.sort(Comparator.comparingLong(scores::get));
+                return List.copyOf(list);
+            });
+            _servers = Map.copyOf(servers);
+        }
+
+        LookupResponse lookup(List<String> qualifiers) {
+            final LookupResponse response = _responses.get(qualifiers);
+            if (response != null) {
+                return response;
+            }
+
+            // A server with several of the qualifiers is only listed once
+            final Set<String> addresses = new LinkedHashSet<>();
+            for (String qualifier : qualifiers) {
+                for (ServerEntry server : _servers.getOrDefault(qualifier, List.of())) {
+                    addresses.add(server.getAddress());
+                }
+            }
+            final LookupResponse built = LookupResponse.newBuilder().addAllAddress(addresses).build();
+            if (qualifiers.equals(DEFAULT_QUALIFIERS)
+                    || (qualifiers.size() == 1 && _servers.containsKey(qualifiers.get(0)))) {
+                _responses.putIfAbsent(List.copyOf(qualifiers), built);
             }
+            return built;
         }
-        return servers;
     }
 }
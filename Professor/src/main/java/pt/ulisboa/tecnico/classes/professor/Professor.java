@@ -3,6 +3,8 @@ package pt.ulisboa.tecnico.classes.professor;
 import java.util.Scanner;
 import java.util.regex.Pattern;
 
+import pt.ulisboa.tecnico.classes.NamingChannels;
+
 public class Professor {
   // error format
   static final String _error_fmt = "ERROR: %s\n";
@@ -12,8 +14,8 @@ public class Professor {
   static private Scanner _scanner;
 
   public static void main(String[] args) {
-    // Setup Frontend
-    _professorFrontend = new ProfessorFrontend("localhost", 5000);
+    // Setup Frontend (receives IP and port of naming server and the class to manage)
+    _professorFrontend = new ProfessorFrontend(NamingChannels.ENDPOINTS, System.getProperty("classId", ""));
 
     // Read command line
     _scanner = new Scanner(System.in);
@@ -5,16 +5,14 @@ import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import static io.grpc.Status.Code.INVALID_ARGUMENT;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 
+import pt.ulisboa.tecnico.classes.NamingChannels;
+import pt.ulisboa.tecnico.classes.NamingView;
+import pt.ulisboa.tecnico.classes.SessionTokens;
 import pt.ulisboa.tecnico.classes.Stringify;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
-import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc;
-import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupRequest;
-import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupResponse;
-import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc.NamingServerServiceBlockingStub;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.SessionToken;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.CancelEnrollmentRequest;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.CancelEnrollmentResponse;
@@ -34,15 +32,35 @@ public class ProfessorFrontend {
     // error messages
     private final String SERVER_UNREACHABLE = "Unreachable server... Try again...";
 
-    // grpc
-    private ManagedChannel _channel;
-    private final NamingServerServiceBlockingStub _stubNaming;
+    // grpc, a channel to the primary and one to the secondary
+    private ManagedChannel _channelP;
+    private ManagedChannel _channelS;
+    private final ManagedChannel _namingChannel;
+
+    // Primary and secondary servers, as watched on the naming server
+    private final NamingView _viewP;
+    private final NamingView _viewS;
     private ProfessorServiceGrpc.ProfessorServiceBlockingStub _stubP;
     private ProfessorServiceGrpc.ProfessorServiceBlockingStub _stubS;
 
     // grpc randomness
     private double probabilityP = 0.5;
 
+    // Calls retried after failing, each one moving to the next server listed
+    private static final int MAX_RETRIES = Integer.getInteger("maxRetries", 3);
+
+    // Server a call of the current request failed on, avoided by its retries
+    private String _failed;
+
+    // Oldest data accepted by reads, in milliseconds since the server last had every write of a peer
+    private static final long MAX_STALENESS = Long.getLong("maxStaleness", 0);
+
+    // Writes made so far, sent with every read so it reflects them
+    private SessionToken _token = SessionToken.getDefaultInstance();
+
+    // class this professor is managing
+    private final String _classId;
+
     private enum classServerType {
         P, S
     }
@@ -50,28 +68,44 @@ public class ProfessorFrontend {
     /**
      * Create channel and stub to call remote services on server
      * 
-     * @param host
-     * @param port
+     * @param namingServers host:port of every naming server, separated by commas
+     * @param classId
      */
-    public ProfessorFrontend(String host, int port) {
-        _channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
-        _stubNaming = NamingServerServiceGrpc.newBlockingStub(_channel);
+    public ProfessorFrontend(String namingServers, String classId) {
+        _classId = classId;
+        _namingChannel = NamingChannels.create(namingServers);
+        _viewP = new NamingView(_namingChannel, "Turmas", List.of("P"));
+        _viewS = new NamingView(_namingChannel, "Turmas", List.of("S"));
         updateStub(classServerType.P);
         updateStub(classServerType.S);
     }
 
     /**
-     * Opens the enrollments for the class, with a certain maximum capacity
+     * Opens the enrollments for the class, with a certain maximum capacity.
+     * Sent to either server, as secondaries take writes too, and retried
+     * on the primary if the secondary does not
      * 
      * @param capacity
      */
     public void openEnrollmentsRequest(int capacity) {
-        final OpenEnrollmentsRequest request = OpenEnrollmentsRequest.newBuilder().setCapacity(capacity).build();
-        final OpenEnrollmentsResponse response;
+        _failed = null;
+        openEnrollmentsRequest(capacity, 0);
+    }
+
+    /**
+     * Opens the enrollments, retrying calls that fail up to MAX_RETRIES times
+     *
+     * @param attempt number of retries made so far
+     */
+    private void openEnrollmentsRequest(int capacity, int attempt) {
+        final OpenEnrollmentsRequest request = OpenEnrollmentsRequest.newBuilder().setCapacity(capacity).setClassId(_classId).build();
+        OpenEnrollmentsResponse response;
+
+        ProfessorServiceBlockingStub stub = avoidFailed(generateStub(classServerType.S));
 
         // Send Request and Receive Response Try-Catch Block
         try {
-            response = generateStub(classServerType.P).openEnrollments(request);
+            response = stub.openEnrollments(request);
 
             // Outdated stub, update and retry
         } catch (StatusRuntimeException e) {
@@ -79,8 +113,10 @@ public class ProfessorFrontend {
                 System.err.printf(_error_fmt, e.getMessage());
                 return;
             }
-            updateStub(classServerType.P);
-            openEnrollmentsRequest(capacity);
+            if (!reconnect(stub, attempt)) {
+                return;
+            }
+            openEnrollmentsRequest(capacity, attempt + 1);
             return;
             // No server is available
         } catch (NullPointerException e) {
@@ -88,33 +124,92 @@ public class ProfessorFrontend {
             return;
         }
 
+        // Inactive Server Case, or a secondary that does not take writes
+        if (retryOnOther(response.getCode())) {
+
+            // Retrying on the other stub
+            try {
+                stub = (stub == _stubP) ? _stubS : _stubP;
+
+                response = stub.openEnrollments(request);
+
+                // Outdated stub, update and retry
+            } catch (StatusRuntimeException e) {
+                if (!reconnect(stub, attempt)) {
+                    return;
+                }
+                openEnrollmentsRequest(capacity, attempt + 1);
+                return;
+            } catch (NullPointerException e) {
+                System.out.println(Stringify.format(ResponseCode.INACTIVE_SERVER));
+                return;
+            }
+        }
+
         // Displaying to user according to response
+        _token = SessionTokens.merge(_token, response.getToken());
         System.out.println(Stringify.format(response.getCode()));
     }
 
     /**
-     * Closes the class enrollments
+     * Closes the class enrollments, on either server like openEnrollmentsRequest
      */
     public void closeEnrollmentsRequest() {
-        final CloseEnrollmentsRequest request = CloseEnrollmentsRequest.newBuilder().build();
-        final CloseEnrollmentsResponse response;
+        _failed = null;
+        closeEnrollmentsRequest(0);
+    }
+
+    /**
+     * Closes the enrollments, retrying calls that fail up to MAX_RETRIES times
+     *
+     * @param attempt number of retries made so far
+     */
+    private void closeEnrollmentsRequest(int attempt) {
+        final CloseEnrollmentsRequest request = CloseEnrollmentsRequest.newBuilder().setClassId(_classId).build();
+        CloseEnrollmentsResponse response;
+
+        ProfessorServiceBlockingStub stub = avoidFailed(generateStub(classServerType.S));
 
         // Send Request and Receive Response Try-Catch Block
         try {
-            ProfessorServiceBlockingStub stub = generateStub(classServerType.P);
             response = stub.closeEnrollments(request);
 
             // Outdated stub, update and retry
         } catch (StatusRuntimeException e) {
-            updateStub(classServerType.P);
-            closeEnrollmentsRequest();
+            if (!reconnect(stub, attempt)) {
+                return;
+            }
+            closeEnrollmentsRequest(attempt + 1);
             return;
         } catch (NullPointerException e) {
             System.err.printf(_error_fmt, SERVER_UNREACHABLE);
             return;
         }
 
+        // Inactive Server Case, or a secondary that does not take writes
+        if (retryOnOther(response.getCode())) {
+
+            // Retrying on the other stub
+            try {
+                stub = (stub == _stubP) ? _stubS : _stubP;
+
+                response = stub.closeEnrollments(request);
+
+                // Outdated stub, update and retry
+            } catch (StatusRuntimeException e) {
+                if (!reconnect(stub, attempt)) {
+                    return;
+                }
+                closeEnrollmentsRequest(attempt + 1);
+                return;
+            } catch (NullPointerException e) {
+                System.out.println(Stringify.format(ResponseCode.INACTIVE_SERVER));
+                return;
+            }
+        }
+
         // Displaying to user according to response
+        _token = SessionTokens.merge(_token, response.getToken());
         System.out.println(Stringify.format(response.getCode()));
     }
 
@@ -123,10 +218,21 @@ public class ProfessorFrontend {
      * the list of canceled enrollments and the class' total capacity
      */
     public void listClass() {
-        final ListClassRequest request = ListClassRequest.newBuilder().build();
+        _failed = null;
+        listClass(0);
+    }
+
+    /**
+     * Lists the class, retrying calls that fail up to MAX_RETRIES times
+     *
+     * @param attempt number of retries made so far
+     */
+    private void listClass(int attempt) {
+        final ListClassRequest request = ListClassRequest.newBuilder().setClassId(_classId).setToken(_token)
+                .setMaxStaleness(MAX_STALENESS).build();
         ListClassResponse response;
 
-        ProfessorServiceBlockingStub stub = generateStub(classServerType.S);
+        ProfessorServiceBlockingStub stub = avoidFailed(generateStub(classServerType.S));
 
         // Send Request and Receive Response Try-Catch Block
         try {
@@ -135,9 +241,10 @@ public class ProfessorFrontend {
 
             // Outdated stub, update and retry
         } catch (StatusRuntimeException e) {
-            updateStub(classServerType.P);
-            updateStub(classServerType.S);
-            listClass();
+            if (!reconnect(stub, attempt)) {
+                return;
+            }
+            listClass(attempt + 1);
             return;
         } catch (NullPointerException e) {
             System.out.println("1");
@@ -160,9 +267,10 @@ public class ProfessorFrontend {
 
                 // Outdated stub, update and retry
             } catch (StatusRuntimeException e) {
-                updateStub(classServerType.P);
-                updateStub(classServerType.S);
-                listClass();
+                if (!reconnect(stub, attempt)) {
+                    return;
+                }
+                listClass(attempt + 1);
                 return;
             } catch (NullPointerException e) {
                 System.out.println(Stringify.format(ResponseCode.INACTIVE_SERVER));
@@ -185,10 +293,21 @@ public class ProfessorFrontend {
      * @param student_id
      */
     public void cancelEnrollment(String student_id) {
-        final CancelEnrollmentRequest request = CancelEnrollmentRequest.newBuilder().setStudentId(student_id).build();
+        _failed = null;
+        cancelEnrollment(student_id, 0);
+    }
+
+    /**
+     * Cancels the enrollment, retrying calls that fail up to MAX_RETRIES times
+     *
+     * @param attempt number of retries made so far
+     */
+    private void cancelEnrollment(String student_id, int attempt) {
+        final CancelEnrollmentRequest request = CancelEnrollmentRequest.newBuilder().setStudentId(student_id)
+                .setClassId(_classId).build();
         CancelEnrollmentResponse response;
 
-        ProfessorServiceBlockingStub stub = generateStub(classServerType.S);
+        ProfessorServiceBlockingStub stub = avoidFailed(generateStub(classServerType.S));
 
         // Send Request and Receive Response Try-Catch Block
         try {
@@ -196,9 +315,10 @@ public class ProfessorFrontend {
 
             // Outdated stub, update and retry
         } catch (StatusRuntimeException e) {
-            updateStub(classServerType.P);
-            updateStub(classServerType.S);
-            cancelEnrollment(student_id);
+            if (!reconnect(stub, attempt)) {
+                return;
+            }
+            cancelEnrollment(student_id, attempt + 1);
             return;
             // No server is available
         } catch (NullPointerException e) {
@@ -206,10 +326,11 @@ public class ProfessorFrontend {
             return;
         }
 
-        if (!(response.getCode() == ResponseCode.INACTIVE_SERVER)) {
+        if (!retryOnOther(response.getCode())) {
+            _token = SessionTokens.merge(_token, response.getToken());
             System.out.println(Stringify.format(response.getCode()));
         }
-        // Inactive Server Case
+        // Inactive Server Case, or a secondary that does not take writes
         else {
 
             // Retrying on the other stub
@@ -220,72 +341,139 @@ public class ProfessorFrontend {
 
                 // Outdated stub, update and retry
             } catch (StatusRuntimeException e) {
-                updateStub(classServerType.P);
-                updateStub(classServerType.S);
-                cancelEnrollment(student_id);
+                if (!reconnect(stub, attempt)) {
+                    return;
+                }
+                cancelEnrollment(student_id, attempt + 1);
                 return;
             } catch (NullPointerException e) {
                 System.out.println(Stringify.format(ResponseCode.INACTIVE_SERVER));
                 return;
             }
 
+            _token = SessionTokens.merge(_token, response.getToken());
             System.out.println(Stringify.format(response.getCode()));
         }
     }
 
+    /**
+     * Returns true if a write should be retried on the other server: the one
+     * contacted is inactive, or is a secondary running in single-writer mode
+     *
+     * @param code
+     * @return
+     */
+    private static boolean retryOnOther(ResponseCode code) {
+        return code == ResponseCode.INACTIVE_SERVER || code == ResponseCode.WRITING_NOT_SUPPORTED;
+    }
+
     /**
      * Exits the frontend
      */
     public void exit() {
-        _channel.shutdownNow();
+        if (_channelP != null) {
+            _channelP.shutdownNow();
+        }
+        if (_channelS != null) {
+            _channelS.shutdownNow();
+        }
+        _viewP.close();
+        _viewS.close();
+        _namingChannel.shutdownNow();
     }
 
     /**
-     * Updates the corresponding stub
-     * 
-     * @param type
+     * Moves the stub whose call failed to the next server listed, and refreshes the other one
+     *
+     * @param failed stub whose call failed
+     * @param attempt number of retries made so far
+     * @return false if the call was already retried MAX_RETRIES times
      */
-    private void updateStub(classServerType type) {
-        final List<String> qualifiers = new ArrayList<>();
+    private boolean reconnect(ProfessorServiceBlockingStub failed, int attempt) {
+        if (attempt >= MAX_RETRIES) {
+            System.err.printf(_error_fmt, SERVER_UNREACHABLE);
+            return false;
+        }
+        _failed = failed.getChannel().authority();
+        updateStub(classServerType.P, failed == _stubP);
+        updateStub(classServerType.S, failed == _stubS);
+        return true;
+    }
 
-        if (type == classServerType.P) {
-            qualifiers.add("P");
-        } else {
-            qualifiers.add("S");
+    /**
+     * Swaps a stub for the other one if it points at the server a call of this request failed on
+     *
+     * @param stub
+     * @return
+     */
+    private ProfessorServiceBlockingStub avoidFailed(ProfessorServiceBlockingStub stub) {
+        final ProfessorServiceBlockingStub other = (stub == _stubP) ? _stubS : _stubP;
+        if (_failed == null || stub == null || other == null) {
+            return stub;
         }
+        return _failed.equals(stub.getChannel().authority()) ? other : stub;
+    }
+
+    private void updateStub(classServerType type) {
+        updateStub(type, false);
+    }
 
-        final LookupRequest request = LookupRequest.newBuilder().setServiceName("Turmas").addAllQualifiers(qualifiers)
-                .build();
-        final LookupResponse response;
+    /**
+     * Points the stub of a type at the first server listed for it, keeping
+     * its channel if the server is the same
+     *
+     * @param type
+     * @param failed true to move on from the current server, if another one is listed
+     */
+    private void updateStub(classServerType type, boolean failed) {
+        final NamingView view = (type == classServerType.P) ? _viewP : _viewS;
+        final ManagedChannel channel = (type == classServerType.P) ? _channelP : _channelS;
+        final String current = (channel != null) ? channel.authority() : null;
+        final List<String> serverList;
 
         try {
-            response = _stubNaming.lookup(request);
+            serverList = view.getAddresses();
         } catch (StatusRuntimeException e) {
             System.err.printf(_error_fmt, "Unreachable naming server...");
             return;
         }
 
-        List<String> serverList = response.getAddressList().stream().toList();
-
+        String server = null;
         if (serverList.size() != 0) {
-            String server = serverList.get(new Random().nextInt(serverList.size()));
-            String[] address = server.split(":");
-            String host = address[0];
-            int port = Integer.parseInt(address[1]);
+            // Ordered by health by the naming server, so the first is the fastest active server.
+            // One that just failed keeps its place until the next probe, so it is skipped
+            server = serverList.get(0);
+            if (failed) {
+                for (String listed : serverList) {
+                    if (!listed.equals(current)) {
+                        server = listed;
+                        break;
+                    }
+                }
+            }
+            if (server.equals(current)) {
+                return;
+            }
+        }
 
-            _channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        if (channel != null) {
+            channel.shutdownNow();
+        }
 
-            if (type == classServerType.P) {
-                _stubP = ProfessorServiceGrpc.newBlockingStub(_channel);
-            } else {
-                _stubS = ProfessorServiceGrpc.newBlockingStub(_channel);
-            }
+        ProfessorServiceBlockingStub stub = null;
+        ManagedChannel next = null;
+        if (server != null) {
+            String[] address = server.split(":");
+            next = ManagedChannelBuilder.forAddress(address[0], Integer.parseInt(address[1])).usePlaintext().build();
+            stub = ProfessorServiceGrpc.newBlockingStub(next);
+        }
 
-            // If empty list:
-        } else if (type == classServerType.P) {
-            _stubP = null;
+        if (type == classServerType.P) {
+            _channelP = next;
+            _stubP = stub;
         } else {
-            _stubS = null;
+            _channelS = next;
+            _stubS = stub;
         }
     }
 
@@ -4,6 +4,8 @@ import java.util.Scanner;
 import java.util.StringJoiner;
 import java.util.regex.Pattern;
 
+import pt.ulisboa.tecnico.classes.NamingChannels;
+
 public class Student {
 
   private static String _id;
@@ -21,8 +23,8 @@ public class Student {
       System.exit(0);
     }
 
-    // Setup Frontend (receives IP and port of naming server)
-    _studentFrontend = new StudentFrontend("localhost", 5000);
+    // Setup Frontend (receives IP and port of naming server and the class to use)
+    _studentFrontend = new StudentFrontend(NamingChannels.ENDPOINTS, System.getProperty("classId", ""));
 
     // Read command line
     _scanner = new Scanner(System.in);
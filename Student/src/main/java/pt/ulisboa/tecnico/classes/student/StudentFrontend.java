@@ -4,23 +4,21 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 
+import pt.ulisboa.tecnico.classes.NamingChannels;
+import pt.ulisboa.tecnico.classes.NamingView;
+import pt.ulisboa.tecnico.classes.SessionTokens;
 import pt.ulisboa.tecnico.classes.Stringify;
-import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc;
-import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc.NamingServerServiceBlockingStub;
 import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc.StudentServiceBlockingStub;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.SessionToken;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
 import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassRequest;
 import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassResponse;
 import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.EnrollRequest;
 import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.EnrollResponse;
-import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupRequest;
-import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupResponse;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 
 public class StudentFrontend {
 
@@ -30,15 +28,35 @@ public class StudentFrontend {
     // error messages
     private static final String SERVER_UNREACHABLE = "Unreachable server... Try again...";
 
-    // grpc
-    private ManagedChannel _channel;
-    private final NamingServerServiceBlockingStub _stubNaming;
+    // grpc, a channel to the primary and one to the secondary
+    private ManagedChannel _channelP;
+    private ManagedChannel _channelS;
+    private final ManagedChannel _namingChannel;
+
+    // Primary and secondary servers, as watched on the naming server
+    private final NamingView _viewP;
+    private final NamingView _viewS;
     private StudentServiceBlockingStub _stubP;
     private StudentServiceBlockingStub _stubS;
 
     // grpc randomness
     private double probabilityP = 0.3;
 
+    // Calls retried after failing, each one moving to the next server listed
+    private static final int MAX_RETRIES = Integer.getInteger("maxRetries", 3);
+
+    // Server a call of the current request failed on, avoided by its retries
+    private String _failed;
+
+    // Oldest data accepted by reads, in milliseconds since the server last had every write of a peer
+    private static final long MAX_STALENESS = Long.getLong("maxStaleness", 0);
+
+    // Writes made so far, sent with every read so it reflects them
+    private SessionToken _token = SessionToken.getDefaultInstance();
+
+    // class this student is interacting with
+    private final String _classId;
+
     private enum classServerType {
         P, S
     }
@@ -46,12 +64,14 @@ public class StudentFrontend {
     /**
      * Create channel and stub to call connect to NamingServer
      *
-     * @param host
-     * @param port
+     * @param namingServers host:port of every naming server, separated by commas
+     * @param classId
      */
-    public StudentFrontend(String host, int port) {
-        _channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
-        _stubNaming = NamingServerServiceGrpc.newBlockingStub(_channel);
+    public StudentFrontend(String namingServers, String classId) {
+        _classId = classId;
+        _namingChannel = NamingChannels.create(namingServers);
+        _viewP = new NamingView(_namingChannel, "Turmas", List.of("P"));
+        _viewS = new NamingView(_namingChannel, "Turmas", List.of("S"));
         updateStub(classServerType.P);
         updateStub(classServerType.S);
     }
@@ -61,10 +81,21 @@ public class StudentFrontend {
      * the list of canceled enrollments and the class' total capacity
      */
     public void listClass() {
-        final ListClassRequest request = ListClassRequest.newBuilder().build();
+        _failed = null;
+        listClass(0);
+    }
+
+    /**
+     * Lists the class, retrying calls that fail up to MAX_RETRIES times
+     *
+     * @param attempt number of retries made so far
+     */
+    private void listClass(int attempt) {
+        final ListClassRequest request = ListClassRequest.newBuilder().setClassId(_classId).setToken(_token)
+                .setMaxStaleness(MAX_STALENESS).build();
         ListClassResponse response;
 
-        StudentServiceBlockingStub stub = generateStub(classServerType.S);
+        StudentServiceBlockingStub stub = avoidFailed(generateStub(classServerType.S));
 
         // Send Request and Receive Response Try-Catch Block
         try {
@@ -72,9 +103,10 @@ public class StudentFrontend {
 
             // Outdated stub, update and retry
         } catch (StatusRuntimeException e) {
-            updateStub(classServerType.P);
-            updateStub(classServerType.S);
-            listClass();
+            if (!reconnect(stub, attempt)) {
+                return;
+            }
+            listClass(attempt + 1);
             return;
             // No server is available
         } catch (NullPointerException e) {
@@ -97,9 +129,10 @@ public class StudentFrontend {
 
                 // Outdated stub, update and retry
             } catch (StatusRuntimeException e) {
-                updateStub(classServerType.P);
-                updateStub(classServerType.S);
-                listClass();
+                if (!reconnect(stub, attempt)) {
+                    return;
+                }
+                listClass(attempt + 1);
                 return;
             } catch (NullPointerException e) {
                 System.out.println(Stringify.format(ResponseCode.INACTIVE_SERVER));
@@ -116,14 +149,25 @@ public class StudentFrontend {
     }
 
     /**
-     * Enrolls the student in the class
+     * Enrolls the student in the class. Sent to either server, as secondaries
+     * take writes too, and retried on the primary if the secondary does not
      */
     public void enroll(String id, String name) {
+        _failed = null;
+        enroll(id, name, 0);
+    }
+
+    /**
+     * Enrolls the student, retrying calls that fail up to MAX_RETRIES times
+     *
+     * @param attempt number of retries made so far
+     */
+    private void enroll(String id, String name, int attempt) {
         final Student student = Student.newBuilder().setStudentId(id).setStudentName(name).build();
-        final EnrollRequest request = EnrollRequest.newBuilder().setStudent(student).build();
+        final EnrollRequest request = EnrollRequest.newBuilder().setStudent(student).setClassId(_classId).build();
         EnrollResponse response;
 
-        StudentServiceBlockingStub stub = generateStub(classServerType.S);
+        StudentServiceBlockingStub stub = avoidFailed(generateStub(classServerType.S));
 
         // Send Request and Receive Response Try-Catch Block
         try {
@@ -131,9 +175,10 @@ public class StudentFrontend {
 
             // Outdated stub, update and retry
         } catch (StatusRuntimeException e) {
-            updateStub(classServerType.P);
-            updateStub(classServerType.S);
-            enroll(id, name);
+            if (!reconnect(stub, attempt)) {
+                return;
+            }
+            enroll(id, name, attempt + 1);
             return;
             // No server is available
         } catch (NullPointerException e) {
@@ -141,10 +186,11 @@ public class StudentFrontend {
             return;
         }
 
-        if (!(response.getCode() == ResponseCode.INACTIVE_SERVER)) {
+        if (!retryOnOther(response.getCode())) {
+            _token = SessionTokens.merge(_token, response.getToken());
             System.out.println(Stringify.format(response.getCode()));
         }
-        // Inactive Server Case
+        // Inactive Server Case, or a secondary that does not take writes
         else {
 
             // Retrying on the other stub
@@ -155,80 +201,139 @@ public class StudentFrontend {
 
                 // Outdated stub, update and retry
             } catch (StatusRuntimeException e) {
-                updateStub(classServerType.P);
-                updateStub(classServerType.S);
-                enroll(id, name);
+                if (!reconnect(stub, attempt)) {
+                    return;
+                }
+                enroll(id, name, attempt + 1);
                 return;
             } catch (NullPointerException e) {
                 System.out.println(Stringify.format(ResponseCode.INACTIVE_SERVER));
                 return;
             }
 
+            _token = SessionTokens.merge(_token, response.getToken());
             System.out.println(Stringify.format(response.getCode()));
         }
     }
 
     /**
-     * Closes the channel
+     * Returns true if a write should be retried on the other server: the one
+     * contacted is inactive, or is a secondary running in single-writer mode
+     *
+     * @param code
+     * @return
+     */
+    private static boolean retryOnOther(ResponseCode code) {
+        return code == ResponseCode.INACTIVE_SERVER || code == ResponseCode.WRITING_NOT_SUPPORTED;
+    }
+
+    /**
+     * Closes the channels
      */
     public void exit() {
-        _channel.shutdownNow();
+        if (_channelP != null) {
+            _channelP.shutdownNow();
+        }
+        if (_channelS != null) {
+            _channelS.shutdownNow();
+        }
+        _viewP.close();
+        _viewS.close();
+        _namingChannel.shutdownNow();
     }
 
     /**
+     * Moves the stub whose call failed to the next server listed, and refreshes the other one
      *
-     * @param type
+     * @param failed stub whose call failed
+     * @param attempt number of retries made so far
+     * @return false if the call was already retried MAX_RETRIES times
      */
-    private void updateStub(classServerType type) {
-        final List<String> qualifiers = new ArrayList<>();
+    private boolean reconnect(StudentServiceBlockingStub failed, int attempt) {
+        if (attempt >= MAX_RETRIES) {
+            System.err.printf(_error_fmt, SERVER_UNREACHABLE);
+            return false;
+        }
+        _failed = failed.getChannel().authority();
+        updateStub(classServerType.P, failed == _stubP);
+        updateStub(classServerType.S, failed == _stubS);
+        return true;
+    }
 
-        if (type == classServerType.P) {
-            qualifiers.add("P");
-        } else {
-            qualifiers.add("S");
+    /**
+     * Swaps a stub for the other one if it points at the server a call of this request failed on
+     *
+     * @param stub
+     * @return
+     */
+    private StudentServiceBlockingStub avoidFailed(StudentServiceBlockingStub stub) {
+        final StudentServiceBlockingStub other = (stub == _stubP) ? _stubS : _stubP;
+        if (_failed == null || stub == null || other == null) {
+            return stub;
         }
+        return _failed.equals(stub.getChannel().authority()) ? other : stub;
+    }
 
+    private void updateStub(classServerType type) {
+        updateStub(type, false);
+    }
 
-        final LookupRequest request = LookupRequest.newBuilder().setServiceName("Turmas").addAllQualifiers(qualifiers)
-                .build();
-        final LookupResponse response;
+    /**
+     * Points the stub of a type at the first server listed for it, keeping
+     * its channel if the server is the same
+     *
+     * @param type
+     * @param failed true to move on from the current server, if another one is listed
+     */
+    private void updateStub(classServerType type, boolean failed) {
+        final NamingView view = (type == classServerType.P) ? _viewP : _viewS;
+        final ManagedChannel channel = (type == classServerType.P) ? _channelP : _channelS;
+        final String current = (channel != null) ? channel.authority() : null;
+        final List<String> serverList;
 
         try {
-            response = _stubNaming.lookup(request);
+            serverList = view.getAddresses();
         } catch (StatusRuntimeException e) {
             System.err.printf(_error_fmt, "Unreachable naming server...");
             return;
         }
 
-        List<String> serverList = response.getAddressList().stream().toList();
-
+        String server = null;
         if (serverList.size() != 0) {
-            String server = serverList.get(new Random().nextInt(serverList.size()));
-            String[] address = server.split(":");
+            // Ordered by health by the naming server, so the first is the fastest active server.
+            // One that just failed keeps its place until the next probe, so it is skipped
+            server = serverList.get(0);
+            if (failed) {
+                for (String listed : serverList) {
+                    if (!listed.equals(current)) {
+                        server = listed;
+                        break;
+                    }
+                }
+            }
+            if (server.equals(current)) {
+                return;
+            }
+        }
 
-            String host = address[0];
-            int port = Integer.parseInt(address[1]);
-            _channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        if (channel != null) {
+            channel.shutdownNow();
+        }
 
-            if (type == classServerType.P) {
-                // System.out.println(host + ":" + port);
-                _stubP = StudentServiceGrpc.newBlockingStub(_channel);
-            } else if (type == classServerType.S) {
-                // System.out.println(host + ":" + port);
-                _stubS = StudentServiceGrpc.newBlockingStub(_channel);
-            } else {
-                System.err.printf(_error_fmt, "Unknown error");
-            }
+        StudentServiceBlockingStub stub = null;
+        ManagedChannel next = null;
+        if (server != null) {
+            String[] address = server.split(":");
+            next = ManagedChannelBuilder.forAddress(address[0], Integer.parseInt(address[1])).usePlaintext().build();
+            stub = StudentServiceGrpc.newBlockingStub(next);
+        }
 
-            // If empty list:
-        } else if (type == classServerType.P) {
-            // System.out.println("NULL P");
-            _stubP = null;
-        } else if (type == classServerType.S) {
-            // System.out.println("NULL S");
-            _stubS = null;
+        if (type == classServerType.P) {
+            _channelP = next;
+            _stubP = stub;
         } else {
-            System.err.printf(_error_fmt, "Unknown error");
+            _channelS = next;
+            _stubS = stub;
         }
     }
 
@@ -0,0 +1,93 @@
+package pt.ulisboa.tecnico.classes;
+
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+import io.grpc.NameResolverRegistry;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Channels to the group of naming servers. Every call goes to the next naming
+ * server that is up, so lookups are spread over the group and keep working
+ * while some of its members are down
+ */
+public class NamingChannels {
+
+  // Naming servers, as host:port separated by commas
+  public static final String ENDPOINTS = System.getProperty("namingServers", "localhost:5000");
+
+  private static final String SCHEME = "naming";
+
+  static {
+    NameResolverRegistry.getDefaultRegistry().register(new Provider());
+  }
+
+  /**
+   * Creates a channel to the given naming servers
+   *
+   * @param endpoints host:port of every naming server, separated by commas
+   * @return
+   */
+  public static ManagedChannel create(String endpoints) {
+    return ManagedChannelBuilder.forTarget(SCHEME + ":///" + endpoints)
+        .defaultLoadBalancingPolicy("round_robin")
+        .usePlaintext()
+        .build();
+  }
+
+  /**
+   * Resolves a list of naming servers to their addresses, once
+   */
+  private static class Provider extends NameResolverProvider {
+
+    @Override
+    public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+      if (!SCHEME.equals(targetUri.getScheme())) {
+        return null;
+      }
+
+      final List<EquivalentAddressGroup> addresses = new ArrayList<>();
+      for (String endpoint : targetUri.getPath().substring(1).split(",")) {
+        final String[] address = endpoint.split(":");
+        addresses.add(new EquivalentAddressGroup(new InetSocketAddress(address[0], Integer.parseInt(address[1]))));
+      }
+
+      return new NameResolver() {
+        @Override
+        public String getServiceAuthority() {
+          return SCHEME;
+        }
+
+        @Override
+        public void start(Listener2 listener) {
+          listener.onResult(ResolutionResult.newBuilder().setAddresses(addresses).build());
+        }
+
+        @Override
+        public void shutdown() {
+        }
+      };
+    }
+
+    @Override
+    public String getDefaultScheme() {
+      return SCHEME;
+    }
+
+    @Override
+    protected boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    protected int priority() {
+      return 5;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package pt.ulisboa.tecnico.classes;
+
+import io.grpc.Channel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupRequest;
+import pt.ulisboa.tecnico.classes.contract.naming.ClassServerNamingServer.LookupResponse;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc.NamingServerServiceBlockingStub;
+import pt.ulisboa.tecnico.classes.contract.naming.NamingServerServiceGrpc.NamingServerServiceStub;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local view of the servers of a service with some qualifiers, kept up to date
+ * by a watch on the naming server. While the watch is not up, addresses are
+ * looked up instead, and the watch is started again after WATCH_RETRY
+ */
+public class NamingView {
+
+  // Wait before watching again after the watch ends, in milliseconds
+  private static final long WATCH_RETRY = Long.getLong("watchRetry", 1000);
+
+  private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "naming-watch");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final NamingServerServiceStub _stub;
+  private final NamingServerServiceBlockingStub _blockingStub;
+  private final LookupRequest _request;
+
+  // Addresses last sent by the watch, null while it is not up
+  private volatile List<String> _addresses;
+
+  private volatile ClientCallStreamObserver<LookupRequest> _call;
+  private volatile boolean _closed = false;
+
+  public NamingView(Channel channel, String service, List<String> qualifiers) {
+    _stub = NamingServerServiceGrpc.newStub(channel);
+    _blockingStub = NamingServerServiceGrpc.newBlockingStub(channel);
+    _request = LookupRequest.newBuilder().setServiceName(service).addAllQualifiers(qualifiers).build();
+    watch();
+  }
+
+  /**
+   * Gets the addresses of the servers, from the watch if it is up
+   *
+   * @return
+   * @throws io.grpc.StatusRuntimeException if they had to be looked up and the naming server is unreachable
+   */
+  public List<String> getAddresses() {
+    final List<String> addresses = _addresses;
+    return (addresses != null) ? addresses : _blockingStub.lookup(_request).getAddressList();
+  }
+
+  /**
+   * Stops watching the naming server
+   */
+  public void close() {
+    _closed = true;
+    final ClientCallStreamObserver<LookupRequest> call = _call;
+    if (call != null) {
+      call.cancel("View closed", null);
+    }
+  }
+
+  private void watch() {
+    if (_closed) {
+      return;
+    }
+    _stub.watch(_request, new ClientResponseObserver<LookupRequest, LookupResponse>() {
+      @Override
+      public void beforeStart(ClientCallStreamObserver<LookupRequest> call) {
+        _call = call;
+      }
+
+      @Override
+      public void onNext(LookupResponse response) {
+        _addresses = response.getAddressList();
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        retry();
+      }
+
+      @Override
+      public void onCompleted() {
+        retry();
+      }
+    });
+  }
+
+  private void retry() {
+    _addresses = null;
+    if (!_closed) {
+      RETRIES.schedule(this::watch, WATCH_RETRY, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package pt.ulisboa.tecnico.classes;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.SessionToken;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SessionTokens {
+
+  /**
+   * Merges the token a client holds with the one returned by its last write,
+   * keeping the highest value of every replica, so the next reads include both
+   *
+   * @param held
+   * @param received
+   * @return
+   */
+  public static SessionToken merge(SessionToken held, SessionToken received) {
+    final Map<String, Integer> values = new LinkedHashMap<>();
+    for (SessionToken token : new SessionToken[] {held, received}) {
+      for (int i = 0; i < token.getValuesCount(); i++) {
+        values.merge(token.getReplicas(i), token.getValues(i), Math::max);
+      }
+    }
+
+    final SessionToken.Builder merged = SessionToken.newBuilder();
+    values.forEach((replica, value) -> merged.addReplicas(replica).addValues(value));
+    return merged.build();
+  }
+}
@@ -40,6 +40,7 @@ public class Stringify {
       case ENROLLMENTS_ALREADY_CLOSED -> "Enrollments are already closed.";
       case INACTIVE_SERVER -> "The server is down.";
       case WRITING_NOT_SUPPORTED -> "The server you contacted does not support writes.";
+      case STALE_REPLICA -> "The server you contacted is not up to date enough for this request yet.";
       default -> "Unknown error.";
     };
   }